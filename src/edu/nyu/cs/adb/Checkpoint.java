@@ -0,0 +1,168 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class is a checkpoint of the committed variables of one site, stored in
+ * a memory-mapped file. After a header (magic number, number of records and
+ * whether never written replicated variables are available), each record holds
+ * variable index, value, version number and availability, sorted by variable
+ * index, so that a variable is found by binary search in the mapped file
+ * without reading the whole checkpoint.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class Checkpoint {
+
+  private static final int MAGIC = 0x41444243;
+  private static final int HEADER_SIZE = 12;
+  private static final int RECORD_SIZE = 16;
+
+  private ByteBuffer _buffer;
+  private int _count;
+  private boolean _defaultsAccessible;
+
+  private Checkpoint(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Invalid checkpoint");
+    }
+    _buffer = buffer;
+    _count = buffer.getInt(4);
+    _defaultsAccessible = buffer.getInt(8) != 0;
+    if (buffer.capacity() < HEADER_SIZE + (long) _count * RECORD_SIZE) {
+      throw new IOException("Truncated checkpoint");
+    }
+  }
+
+  /**
+   * Map the checkpoint in given file.
+   *
+   * @param file
+   * @return checkpoint, or null if the file does not exist
+   * @throws IOException
+   */
+  public static Checkpoint open(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      return new Checkpoint(buffer);
+    } finally {
+      // the mapping stays valid after the channel is closed
+      channel.close();
+    }
+  }
+
+  /**
+   * Write a checkpoint to given file. The records must be sorted by variable
+   * index. The checkpoint is written to a temporary file first and then moved
+   * over the old one.
+   *
+   * @param file
+   * @param count
+   *          number of records
+   * @param varIndexes
+   * @param values
+   * @param versions
+   * @param accessible
+   * @param defaultsAccessible
+   *          whether never written replicated variables are available
+   * @throws IOException
+   */
+  public static void write(File file, int count, int[] varIndexes,
+      int[] values, int[] versions, boolean[] accessible,
+      boolean defaultsAccessible) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    FileChannel channel = FileChannel.open(tmp.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          HEADER_SIZE + (long) count * RECORD_SIZE);
+      buffer.putInt(MAGIC);
+      buffer.putInt(count);
+      buffer.putInt(defaultsAccessible ? 1 : 0);
+      for (int i = 0; i < count; i++) {
+        buffer.putInt(varIndexes[i]);
+        buffer.putInt(values[i]);
+        buffer.putInt(versions[i]);
+        buffer.putInt(accessible[i] ? 1 : 0);
+      }
+      buffer.force();
+    } finally {
+      channel.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Get the number of records.
+   *
+   * @return number of records
+   */
+  public int size() {
+    return _count;
+  }
+
+  /**
+   * Check whether never written replicated variables were available.
+   *
+   * @return true if available
+   */
+  public boolean getDefaultsAccessible() {
+    return _defaultsAccessible;
+  }
+
+  /**
+   * Find the record of given variable.
+   *
+   * @param varIndex
+   * @return record number, or -1 if the variable has no record
+   */
+  public int find(int varIndex) {
+    int low = 0;
+    int high = _count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int index = getVarIndex(mid);
+      if (index < varIndex) {
+        low = mid + 1;
+      } else if (index > varIndex) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  public int getVarIndex(int record) {
+    return _buffer.getInt(HEADER_SIZE + record * RECORD_SIZE);
+  }
+
+  public int getValue(int record) {
+    return _buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 4);
+  }
+
+  public int getVersion(int record) {
+    return _buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 8);
+  }
+
+  public boolean getAccess(int record) {
+    return _buffer.getInt(HEADER_SIZE + record * RECORD_SIZE + 12) != 0;
+  }
+}
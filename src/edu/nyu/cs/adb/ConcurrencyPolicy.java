@@ -0,0 +1,332 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class decides what happens when a read or write of a transaction is
+ * blocked by locks other transactions hold, so that transactions never wait
+ * for each other forever. The default policy is wait-die, the others are:
+ * <ul>
+ * <li>waitdie: an older requester waits for the oldest holder, a younger one
+ * aborts.</li>
+ * <li>woundwait: an older requester wounds (aborts) the younger holders and
+ * waits for the rest, a younger one waits.</li>
+ * <li>nowait: the requester always aborts.</li>
+ * <li>waitforgraph: the requester always waits, and the graph of transactions
+ * waiting for each other is checked for a cycle, in which the youngest
+ * transaction aborts.</li>
+ * </ul>
+ * A transaction is older than another one if it started earlier, or started
+ * at the same time and has a smaller id.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+abstract class ConcurrencyPolicy {
+
+  /**
+   * Outcome of a conflict: either the requester aborts, or it waits and the
+   * victims, if any, abort.
+   */
+  static class Decision {
+    private boolean _abortRequester;
+    private Transaction _blocker;
+    private List<Transaction> _victims;
+    private String _reason;
+
+    private Decision(boolean abortRequester, Transaction blocker,
+        List<Transaction> victims, String reason) {
+      _abortRequester = abortRequester;
+      _blocker = blocker;
+      _victims = victims;
+      _reason = reason;
+    }
+
+    static Decision abort(Transaction blocker, String reason) {
+      return new Decision(true, blocker, Collections.<Transaction> emptyList(),
+          reason);
+    }
+
+    static Decision wait(Transaction blocker) {
+      return new Decision(false, blocker, Collections.<Transaction> emptyList(),
+          null);
+    }
+
+    static Decision wound(Transaction blocker, List<Transaction> victims,
+        String reason) {
+      return new Decision(false, blocker, victims, reason);
+    }
+
+    /**
+     * @return true if the requester aborts
+     */
+    public boolean abortsRequester() {
+      return _abortRequester;
+    }
+
+    /**
+     * @return the transaction the requester waits for, or conflicts with if
+     *         it aborts
+     */
+    public Transaction getBlocker() {
+      return _blocker;
+    }
+
+    /**
+     * @return the transactions which abort so that the requester can go on
+     */
+    public List<Transaction> getVictims() {
+      return _victims;
+    }
+
+    /**
+     * @return why the aborting transactions abort
+     */
+    public String getReason() {
+      return _reason;
+    }
+  }
+
+  /**
+   * Create the policy of given name.
+   *
+   * @param name
+   *          waitdie, woundwait, nowait or waitforgraph
+   * @param transactions
+   *          Map<Transaction id, Transaction>
+   * @return policy
+   */
+  public static ConcurrencyPolicy create(String name,
+      Map<Integer, Transaction> transactions) {
+    if (name.equals("waitdie")) {
+      return new WaitDie();
+    } else if (name.equals("woundwait")) {
+      return new WoundWait();
+    } else if (name.equals("nowait")) {
+      return new NoWait();
+    } else if (name.equals("waitforgraph")) {
+      return new WaitForGraph(transactions);
+    }
+    throw new IllegalArgumentException("Unknown concurrency policy: " + name);
+  }
+
+  /**
+   * Decide what the requester does when blocked by given holders.
+   *
+   * @param requester
+   *          transaction of the blocked operation
+   * @param varIndex
+   *          variable of the blocked operation
+   * @param holders
+   *          transactions holding conflicting locks, at least one
+   * @return decision
+   */
+  public abstract Decision resolve(Transaction requester, int varIndex,
+      List<Transaction> holders);
+
+  /**
+   * Called when the blocked operation of given transaction on given variable
+   * is woken up, before it runs again.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   */
+  public void operationWoken(int tid, int varIndex) {
+  }
+
+  /**
+   * Called when given transaction commits or aborts.
+   *
+   * @param tid
+   *          transaction id
+   */
+  public void transactionEnded(int tid) {
+  }
+
+  /* Check whether transaction a is older than transaction b */
+  static boolean isOlder(Transaction a, Transaction b) {
+    return a.getTimestamp() < b.getTimestamp()
+        || (a.getTimestamp() == b.getTimestamp() && a.getTranId() < b
+            .getTranId());
+  }
+
+  /* Return the oldest of given transactions */
+  static Transaction oldest(List<Transaction> holders) {
+    Transaction oldest = holders.get(0);
+    for (Transaction t : holders) {
+      if (isOlder(t, oldest)) {
+        oldest = t;
+      }
+    }
+    return oldest;
+  }
+
+  static class WaitDie extends ConcurrencyPolicy {
+    @Override
+    public Decision resolve(Transaction requester, int varIndex,
+        List<Transaction> holders) {
+      Transaction oldest = oldest(holders);
+      if (requester.getTimestamp() < oldest.getTimestamp()) {
+        return Decision.wait(oldest);
+      }
+      return Decision.abort(oldest, "conflict with T" + oldest.getTranId());
+    }
+  }
+
+  static class WoundWait extends ConcurrencyPolicy {
+    @Override
+    public Decision resolve(Transaction requester, int varIndex,
+        List<Transaction> holders) {
+      List<Transaction> younger = new ArrayList<Transaction>();
+      for (Transaction t : holders) {
+        if (isOlder(requester, t)) {
+          younger.add(t);
+        }
+      }
+      // wait for the oldest holder, which is wounded if all of them are
+      // younger, so that its abort wakes the requester
+      Transaction oldest = oldest(holders);
+      if (younger.isEmpty()) {
+        return Decision.wait(oldest);
+      }
+      return Decision.wound(oldest, younger, "wounded by T"
+          + requester.getTranId());
+    }
+  }
+
+  static class NoWait extends ConcurrencyPolicy {
+    @Override
+    public Decision resolve(Transaction requester, int varIndex,
+        List<Transaction> holders) {
+      Transaction oldest = oldest(holders);
+      return Decision.abort(oldest, "conflict with T" + oldest.getTranId());
+    }
+  }
+
+  /**
+   * Keeps an edge from each waiting transaction to each transaction it waits
+   * for, and looks for a cycle through each new edge. The edges are kept per
+   * blocked operation, until the operation is woken up or one of the
+   * transactions ends. Methods are synchronized, since concurrent sessions
+   * may block at the same time.
+   */
+  static class WaitForGraph extends ConcurrencyPolicy {
+    private Map<Integer, Transaction> _transactions;
+
+    // Map<Transaction id, Map<Variable index of a blocked operation, ids of
+    // the transactions it waits for>>
+    private Map<Integer, Map<Integer, Set<Integer>>> _waitsFor = new HashMap<Integer, Map<Integer, Set<Integer>>>();
+
+    public WaitForGraph(Map<Integer, Transaction> transactions) {
+      _transactions = transactions;
+    }
+
+    @Override
+    public synchronized Decision resolve(Transaction requester,
+        int varIndex, List<Transaction> holders) {
+      int tid = requester.getTranId();
+      Map<Integer, Set<Integer>> blocked = _waitsFor.get(tid);
+      if (blocked == null) {
+        blocked = new HashMap<Integer, Set<Integer>>();
+        _waitsFor.put(tid, blocked);
+      }
+      // an operation resolved again waits for the current holders only
+      Set<Integer> edges = new HashSet<Integer>();
+      for (Transaction t : holders) {
+        edges.add(t.getTranId());
+      }
+      blocked.put(varIndex, edges);
+      Transaction oldest = oldest(holders);
+      // the requester may close several cycles, break each of them
+      List<Transaction> victims = new ArrayList<Transaction>();
+      Set<Integer> excluded = new HashSet<Integer>();
+      List<Integer> cycle;
+      while ((cycle = findCycle(tid, excluded)) != null) {
+        Transaction victim = requester;
+        for (Integer member : cycle) {
+          Transaction t = _transactions.get(member);
+          if (isOlder(victim, t)) {
+            victim = t;
+          }
+        }
+        if (victim == requester) {
+          return Decision.abort(_transactions.get(cycle.get(1)),
+              "deadlock with T" + cycle.get(1));
+        }
+        victims.add(victim);
+        excluded.add(victim.getTranId());
+      }
+      if (victims.isEmpty()) {
+        return Decision.wait(oldest);
+      }
+      return Decision.wound(oldest, victims, "deadlock with T" + tid);
+    }
+
+    @Override
+    public synchronized void operationWoken(int tid, int varIndex) {
+      Map<Integer, Set<Integer>> blocked = _waitsFor.get(tid);
+      if (blocked != null) {
+        blocked.remove(varIndex);
+        if (blocked.isEmpty()) {
+          _waitsFor.remove(tid);
+        }
+      }
+    }
+
+    @Override
+    public synchronized void transactionEnded(int tid) {
+      _waitsFor.remove(tid);
+      for (Map<Integer, Set<Integer>> blocked : _waitsFor.values()) {
+        for (Set<Integer> edges : blocked.values()) {
+          edges.remove(tid);
+        }
+      }
+    }
+
+    /*
+     * Return a cycle through given transaction, starting with it and not
+     * going through the excluded transactions, or null if there is none.
+     */
+    private List<Integer> findCycle(int tid, Set<Integer> excluded) {
+      List<Integer> path = new ArrayList<Integer>();
+      path.add(tid);
+      if (findPath(tid, tid, path, new HashSet<Integer>(excluded))) {
+        return path;
+      }
+      return null;
+    }
+
+    /* Depth first search for a path from given node back to target */
+    private boolean findPath(int node, int target, List<Integer> path,
+        Set<Integer> visited) {
+      Map<Integer, Set<Integer>> blocked = _waitsFor.get(node);
+      if (blocked == null) {
+        return false;
+      }
+      for (Set<Integer> edges : blocked.values()) {
+        for (Integer next : edges) {
+          if (next == target) {
+            return true;
+          }
+          if (visited.add(next)) {
+            path.add(next);
+            if (findPath(next, target, path, visited)) {
+              return true;
+            }
+            path.remove(path.size() - 1);
+          }
+        }
+      }
+      return false;
+    }
+  }
+}
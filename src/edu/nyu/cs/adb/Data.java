@@ -13,6 +13,9 @@ public class Data {
   private boolean _accessible;
   private int _commitTime;
 
+  // version number, incremented by each committed write of the variable
+  private int _version;
+
   // record the first time this data becomes unavailable
   private int unavailableTime;
 
@@ -21,6 +24,7 @@ public class Data {
     _value = value;
     _accessible = true;
     _commitTime = -1;
+    _version = 0;
     unavailableTime = -1;
   }
 
@@ -72,6 +76,22 @@ public class Data {
     return _commitTime;
   }
 
+  /**
+   * Set version number for data.
+   * @param version
+   */
+  public void setVersion(int version) {
+    _version = version;
+  }
+
+  /**
+   * Get version number for data, 0 for the default value.
+   * @return
+   */
+  public int getVersion() {
+    return _version;
+  }
+
   /**
    * Get variable index of data.
    * @return
@@ -99,6 +119,18 @@ public class Data {
     }
   }
 
+  /**
+   * Check whether given data is the same committed version of the variable,
+   * not only the same value.
+   *
+   * @param other
+   * @return true if same value, version number and commit time
+   */
+  public boolean isSameVersion(Data other) {
+    return equals(other) && _version == other._version
+        && _commitTime == other._commitTime;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o)
@@ -0,0 +1,568 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class stores the committed variables of one site, the ones the
+ * placement puts at this site. A variable never written keeps its default value
+ * (10 times its index) and takes no storage; the last committed version of a
+ * written variable is kept in primitive arrays, found by an open-addressing
+ * map from variable index to slot. Variables not written since startup may
+ * also be found in the mapped checkpoint loaded at startup. Older versions
+ * still needed by read-only transactions are kept in version chains for the
+ * few variables that have them. A hash tree over the last committed versions of
+ * replicated variables is kept up to date, so that replicas can find where
+ * they differ.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class DataStore {
+
+  private static final byte ACCESSIBLE = 1;
+
+  private int _nVariables;
+  private Placement _placement;
+  private int _siteIndex;
+
+  // whether the versions of replicated variables not written since startup
+  // (default or checkpoint versions) are available, and the time they became
+  // unavailable
+  private boolean _unwrittenAccessible = true;
+  private int _unwrittenUnavailableTime = -1;
+
+  // checkpoint loaded at startup, null if none
+  private Checkpoint _base;
+
+  // whether default versions of replicated variables are available according
+  // to the checkpoint
+  private boolean _defaultsAccessible = true;
+
+  // open-addressing table from variable index to slot, 0 means empty
+  private int[] _keys;
+  private int[] _slotOfKey;
+
+  // last committed version of written variables, indexed by slot
+  private int _nSlots = 0;
+  private int[] _slotVars;
+  private byte[] _flags;
+  private int[] _values;
+  private int[] _commitTimes;
+  private int[] _versions;
+  private int[] _unavailableTimes;
+
+  // Map<Variable index, older versions> for variables having more than one
+  // committed version
+  private Map<Integer, VersionChain> _oldVersions = new HashMap<Integer, VersionChain>();
+
+  // number of old versions kept, and number of old versions reclaimed
+  private long _oldVersionCount = 0;
+  private long _versionsReclaimed = 0;
+
+  // hash tree over the last committed versions of replicated variables
+  private HashTree _tree;
+
+  // number of slots of replicated variables which are unavailable
+  private int _unavailableSlots = 0;
+
+  public DataStore(int nVariables, Placement placement, int siteIndex) {
+    _nVariables = nVariables;
+    _placement = placement;
+    _siteIndex = siteIndex;
+    _keys = new int[16];
+    _slotOfKey = new int[16];
+    _slotVars = new int[8];
+    _flags = new byte[8];
+    _values = new int[8];
+    _commitTimes = new int[8];
+    _versions = new int[8];
+    _unavailableTimes = new int[8];
+    _tree = new HashTree(nVariables);
+  }
+
+  /**
+   * Get the number of variables of the database.
+   *
+   * @return number of variables
+   */
+  public int getVariableCount() {
+    return _nVariables;
+  }
+
+  /**
+   * Check whether given variable is stored at this site.
+   *
+   * @param varIndex
+   * @return true if stored
+   */
+  public boolean contains(int varIndex) {
+    return _placement.isStoredAt(varIndex, _siteIndex);
+  }
+
+  /**
+   * Check whether given variable is stored at more than one site.
+   *
+   * @param varIndex
+   * @return true if replicated
+   */
+  public boolean isReplicated(int varIndex) {
+    return _placement.isReplicated(varIndex);
+  }
+
+  /**
+   * Check whether every replicated variable is stored at all sites.
+   *
+   * @return true if replicated variables are at all sites
+   */
+  public boolean isFullyReplicated() {
+    return _placement.isFullyReplicated();
+  }
+
+  /**
+   * Get the last committed version of given variable.
+   *
+   * @param varIndex
+   * @return data
+   */
+  public Data getLatest(int varIndex) {
+    int slot = findSlot(varIndex);
+    if (slot == -1) {
+      // not written since startup, the checkpoint or default version
+      Data d;
+      boolean access;
+      int record = _base == null ? -1 : _base.find(varIndex);
+      if (record != -1) {
+        d = new Data(varIndex, _base.getValue(record));
+        d.setVersion(_base.getVersion(record));
+        access = _base.getAccess(record);
+      } else {
+        d = new Data(varIndex, 10 * varIndex);
+        access = !isReplicated(varIndex) || _defaultsAccessible;
+      }
+      if (isReplicated(varIndex) && !_unwrittenAccessible) {
+        access = false;
+        d.setUnavailableTime(_unwrittenUnavailableTime);
+      }
+      d.setAccess(access);
+      return d;
+    }
+    Data d = new Data(varIndex, _values[slot]);
+    d.setCommitTime(_commitTimes[slot]);
+    d.setVersion(_versions[slot]);
+    d.setAccess((_flags[slot] & ACCESSIBLE) != 0);
+    d.setUnavailableTime(_unavailableTimes[slot]);
+    return d;
+  }
+
+  /**
+   * Get the version number of the last committed version of given variable,
+   * without building its data.
+   *
+   * @param varIndex
+   * @return version number
+   */
+  public int getLatestVersion(int varIndex) {
+    int slot = findSlot(varIndex);
+    if (slot != -1) {
+      return _versions[slot];
+    }
+    int record = _base == null ? -1 : _base.find(varIndex);
+    return record != -1 ? _base.getVersion(record) : 0;
+  }
+
+  /**
+   * Get the last version of given variable committed no later than given
+   * time.
+   *
+   * @param varIndex
+   * @param time
+   * @return data, or null if there is no such version
+   */
+  public Data getVisible(int varIndex, int time) {
+    int slot = findSlot(varIndex);
+    if (slot == -1 || _commitTimes[slot] <= time) {
+      return getLatest(varIndex);
+    }
+    VersionChain chain = _oldVersions.get(varIndex);
+    return chain == null ? null : chain.getVisible(time);
+  }
+
+  /**
+   * Make the last committed version of all the replicated variables
+   * unavailable, since given time. A version only records the first time it
+   * becomes unavailable.
+   *
+   * @param time
+   */
+  public void setReplicatedUnavailable(int time) {
+    if (_unwrittenAccessible) {
+      _unwrittenAccessible = false;
+      _unwrittenUnavailableTime = time;
+    }
+    for (int slot = 0; slot < _nSlots; slot++) {
+      if (isReplicated(_slotVars[slot])) {
+        setAccess(slot, false);
+        if (_unavailableTimes[slot] == -1) {
+          _unavailableTimes[slot] = time;
+        }
+      }
+    }
+  }
+
+  /**
+   * Make the last committed version of all the replicated variables
+   * available again, used when they are known to be up to date.
+   */
+  public void setReplicatedAvailable() {
+    setDefaultsAccessible();
+    for (int slot = 0; slot < _nSlots; slot++) {
+      if (isReplicated(_slotVars[slot])) {
+        setAccess(slot, true);
+        _unavailableTimes[slot] = -1;
+      }
+    }
+  }
+
+  /**
+   * Check whether the last committed versions of all the replicated variables
+   * are available.
+   *
+   * @return true if all available
+   */
+  public boolean isReplicatedAvailable() {
+    return getDefaultsAccessible() && _unavailableSlots == 0;
+  }
+
+  /**
+   * Get the hash tree over the last committed versions of replicated
+   * variables.
+   *
+   * @return hash tree
+   */
+  public HashTree getHashTree() {
+    return _tree;
+  }
+
+  /**
+   * Use the given checkpoint for variables not written since startup. Its
+   * versions are initial versions, read from the mapped file on demand,
+   * except the unavailable versions of replicated variables, which are copied
+   * to slots so that unavailable versions are counted.
+   *
+   * @param checkpoint
+   */
+  public void setBase(Checkpoint checkpoint) {
+    _base = checkpoint;
+    _defaultsAccessible = checkpoint.getDefaultsAccessible();
+    for (int record = 0; record < checkpoint.size(); record++) {
+      int varIndex = checkpoint.getVarIndex(record);
+      if (isReplicated(varIndex)) {
+        _tree.update(varIndex, 0, HashTree.hash(varIndex,
+            checkpoint.getValue(record), checkpoint.getVersion(record), -1));
+        if (!checkpoint.getAccess(record)) {
+          setUnavailable(varIndex, -1);
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the last committed version of every variable which is not a
+   * default version to a checkpoint file.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void writeCheckpoint(File file) throws IOException {
+    int[] varIndexes = getWrittenVariables();
+    int count = varIndexes.length;
+    int[] values = new int[count];
+    int[] versions = new int[count];
+    boolean[] accessible = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      Data d = getLatest(varIndexes[i]);
+      values[i] = d.getValue();
+      versions[i] = d.getVersion();
+      accessible[i] = d.getAccess();
+    }
+    Checkpoint.write(file, count, varIndexes, values, versions,
+        accessible, _defaultsAccessible && _unwrittenAccessible);
+  }
+
+  /**
+   * Get the indexes of all the variables which are not at their default
+   * version, i.e. written since startup or found in the checkpoint.
+   *
+   * @return sorted variable indexes
+   */
+  public int[] getWrittenVariables() {
+    // merge checkpoint variables with variables written since startup
+    int baseCount = _base == null ? 0 : _base.size();
+    int[] written = Arrays.copyOf(_slotVars, _nSlots);
+    Arrays.sort(written);
+    int[] result = new int[baseCount + _nSlots];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < baseCount || j < written.length) {
+      if (j == written.length
+          || (i < baseCount && _base.getVarIndex(i) < written[j])) {
+        result[count++] = _base.getVarIndex(i++);
+      } else {
+        if (i < baseCount && _base.getVarIndex(i) == written[j]) {
+          i++;
+        }
+        result[count++] = written[j++];
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  /**
+   * Check whether the default versions of replicated variables are available.
+   *
+   * @return true if available
+   */
+  public boolean getDefaultsAccessible() {
+    return _defaultsAccessible && _unwrittenAccessible;
+  }
+
+  /**
+   * Make the default versions of replicated variables available again, used
+   * when they are known to be up to date.
+   */
+  public void setDefaultsAccessible() {
+    _defaultsAccessible = true;
+    _unwrittenAccessible = true;
+    _unwrittenUnavailableTime = -1;
+  }
+
+  /**
+   * Make the last committed version of given variable unavailable since given
+   * time, if it is not already.
+   *
+   * @param varIndex
+   * @param time
+   */
+  public void setUnavailable(int varIndex, int time) {
+    int slot = findSlot(varIndex);
+    if (slot == -1) {
+      Data d = getLatest(varIndex);
+      slot = addSlot(varIndex);
+      _values[slot] = d.getValue();
+      _commitTimes[slot] = d.getCommitTime();
+      _versions[slot] = d.getVersion();
+      _unavailableTimes[slot] = d.getUnavailableTime();
+    }
+    setAccess(slot, false);
+    if (_unavailableTimes[slot] == -1) {
+      _unavailableTimes[slot] = time;
+    }
+  }
+
+  /**
+   * Load the value of given variable recovered from log, as its initial
+   * version.
+   *
+   * @param varIndex
+   * @param value
+   * @param version
+   */
+  public void load(int varIndex, int value, int version) {
+    long oldHash = hashOf(varIndex);
+    int slot = findSlot(varIndex);
+    if (slot == -1) {
+      slot = addSlot(varIndex);
+    }
+    setAccess(slot, true);
+    _values[slot] = value;
+    _commitTimes[slot] = -1;
+    _versions[slot] = version;
+    _unavailableTimes[slot] = -1;
+    updateTree(varIndex, oldHash);
+  }
+
+  /**
+   * Add a newly committed version of given variable. The previous version is
+   * kept only if some running read-only transaction may still read it.
+   *
+   * @param d
+   *          committed data
+   * @param oldest
+   *          start time of the oldest running read-only transaction, -1 if
+   *          there is none
+   */
+  public void commit(Data d, int oldest) {
+    int varIndex = d.getIndex();
+    if (oldest != -1) {
+      VersionChain chain = _oldVersions.get(varIndex);
+      if (chain == null) {
+        _oldVersions.put(varIndex, new VersionChain(getLatest(varIndex)));
+      } else {
+        chain.add(getLatest(varIndex));
+      }
+      _oldVersionCount++;
+    } else {
+      _versionsReclaimed++;
+    }
+    long oldHash = hashOf(varIndex);
+    int slot = findSlot(varIndex);
+    if (slot == -1) {
+      slot = addSlot(varIndex);
+    }
+    setAccess(slot, true);
+    _values[slot] = d.getValue();
+    _commitTimes[slot] = d.getCommitTime();
+    _versions[slot] = d.getVersion();
+    _unavailableTimes[slot] = -1;
+    updateTree(varIndex, oldHash);
+    prune(varIndex, oldest);
+  }
+
+  /**
+   * Remove the old versions no running read-only transaction can read, from
+   * all the variables having old versions.
+   *
+   * @param oldest
+   *          start time of the oldest running read-only transaction, -1 if
+   *          there is none
+   */
+  public void sweep(int oldest) {
+    for (Integer varIndex : new ArrayList<Integer>(_oldVersions.keySet())) {
+      prune(varIndex, oldest);
+    }
+  }
+
+  /**
+   * Get the number of committed versions kept, including the default
+   * versions of variables never written.
+   *
+   * @return number of versions
+   */
+  public long getVersionsRetained() {
+    return _placement.getVariableCount(_siteIndex) + _oldVersionCount;
+  }
+
+  /**
+   * Get the number of old versions reclaimed so far.
+   *
+   * @return number of versions
+   */
+  public long getVersionsReclaimed() {
+    return _versionsReclaimed;
+  }
+
+  /*
+   * Remove the versions of given variable older than the one visible to the
+   * oldest running read-only transaction. Every running read-only transaction
+   * reads that version or a newer one.
+   */
+  private void prune(int varIndex, int oldest) {
+    VersionChain chain = _oldVersions.get(varIndex);
+    if (chain == null) {
+      return;
+    }
+    int removed;
+    if (oldest == -1 || _commitTimes[findSlot(varIndex)] <= oldest) {
+      removed = chain.size();
+      _oldVersions.remove(varIndex);
+    } else {
+      removed = chain.prune(oldest);
+    }
+    _oldVersionCount -= removed;
+    _versionsReclaimed += removed;
+  }
+
+  /* Set availability of the version in given slot, counting unavailable ones */
+  private void setAccess(int slot, boolean access) {
+    boolean old = (_flags[slot] & ACCESSIBLE) != 0;
+    if (old != access && isReplicated(_slotVars[slot])) {
+      _unavailableSlots += access ? -1 : 1;
+    }
+    _flags[slot] = access ? ACCESSIBLE : 0;
+  }
+
+  /* Hash of the last committed version of given variable in the tree */
+  private long hashOf(int varIndex) {
+    if (!isReplicated(varIndex)) {
+      return 0;
+    }
+    int slot = findSlot(varIndex);
+    if (slot == -1) {
+      Data d = getLatest(varIndex);
+      return HashTree.hash(varIndex, d.getValue(), d.getVersion(),
+          d.getCommitTime());
+    }
+    return HashTree.hash(varIndex, _values[slot], _versions[slot],
+        _commitTimes[slot]);
+  }
+
+  /* Update the tree after the last committed version of given variable changed */
+  private void updateTree(int varIndex, long oldHash) {
+    if (isReplicated(varIndex)) {
+      _tree.update(varIndex, oldHash, hashOf(varIndex));
+    }
+  }
+
+  /* Return slot of given variable, or -1 if it has never been written */
+  private int findSlot(int varIndex) {
+    int mask = _keys.length - 1;
+    int pos = hash(varIndex) & mask;
+    while (_keys[pos] != 0) {
+      if (_keys[pos] == varIndex) {
+        return _slotOfKey[pos];
+      }
+      pos = (pos + 1) & mask;
+    }
+    return -1;
+  }
+
+  /* Allocate a slot for given variable */
+  private int addSlot(int varIndex) {
+    if (_nSlots == _slotVars.length) {
+      int size = _nSlots * 2;
+      _slotVars = Arrays.copyOf(_slotVars, size);
+      _flags = Arrays.copyOf(_flags, size);
+      _values = Arrays.copyOf(_values, size);
+      _commitTimes = Arrays.copyOf(_commitTimes, size);
+      _versions = Arrays.copyOf(_versions, size);
+      _unavailableTimes = Arrays.copyOf(_unavailableTimes, size);
+    }
+    int slot = _nSlots++;
+    _slotVars[slot] = varIndex;
+    // a new slot starts available, callers set its availability
+    _flags[slot] = ACCESSIBLE;
+    // keep the table at most half full
+    if (_nSlots * 2 > _keys.length) {
+      _keys = new int[_keys.length * 2];
+      _slotOfKey = new int[_keys.length];
+      for (int i = 0; i < _nSlots; i++) {
+        insertKey(_slotVars[i], i);
+      }
+    } else {
+      insertKey(varIndex, slot);
+    }
+    return slot;
+  }
+
+  private void insertKey(int varIndex, int slot) {
+    int mask = _keys.length - 1;
+    int pos = hash(varIndex) & mask;
+    while (_keys[pos] != 0) {
+      pos = (pos + 1) & mask;
+    }
+    _keys[pos] = varIndex;
+    _slotOfKey[pos] = slot;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -1,5 +1,10 @@
 package edu.nyu.cs.adb;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * This class is the main entry class for distributed database system.
  * -----------------------------------------------------------------------
@@ -24,6 +29,80 @@ package edu.nyu.cs.adb;
  * Option 2) read instrutions from file.
  * 
  *    java -cp src edu.nyu.cs.adb.Database <PATH_TO_INPUTFILE>
+ *
+ * Option 3) run several input files as concurrent sessions, one thread each.
+ *
+ *    java -cp src edu.nyu.cs.adb.Database <PATH_TO_INPUTFILE> ...
+ *
+ * The number of sites and variables can be set by system properties, by
+ * default 10 sites and 20 variables:
+ *
+ *    java -Dadb.sites=10 -Dadb.variables=20 -cp src edu.nyu.cs.adb.Database
+ *
+ * Committed writes are logged to disk and replayed at startup if a log
+ * directory is given. Logs are forced once per tick unless group commit is
+ * turned off, and commits are reported once the logs are forced. The
+ * decision to commit a transaction written at several sites is logged before
+ * they commit, so that a site which prepared it and missed its commit learns
+ * the outcome at restart. Each site writes a checkpoint and truncates its log every given number of commits, if
+ * a checkpoint interval is given:
+ *
+ *    java -Dadb.logdir=<DIR> -Dadb.groupcommit=true -Dadb.checkpoint=1000
+ *         -cp src edu.nyu.cs.adb.Database
+ *
+ * A recovered site can pull replicated variables from its peers, in batches
+ * of given size, instead of waiting for them to be written:
+ *
+ *    java -Dadb.catchup=1000 -cp src edu.nyu.cs.adb.Database
+ *
+ * Each site can run on its own thread, so that writes, commits and aborts
+ * sent to several sites run in parallel:
+ *
+ *    java -Dadb.siteexecutors=true -cp src edu.nyu.cs.adb.Database
+ *
+ * Reads of replicated variables try the sites in site order by default, or
+ * spread over the replicas with policy roundrobin, leastoutstanding or
+ * affinity:
+ *
+ *    java -Dadb.replicas=roundrobin -cp src edu.nyu.cs.adb.Database
+ *
+ * Blocked operations follow wait-die by default, or policy woundwait, nowait
+ * or waitforgraph (deadlock detection aborting the youngest transaction of a
+ * cycle):
+ *
+ *    java -Dadb.concurrency=woundwait -cp src edu.nyu.cs.adb.Database
+ *
+ * An aborted READ_WRITE transaction can restart with its original timestamp
+ * and replay its operations, up to given number of times, after a backoff of
+ * given number of ticks doubling at each restart:
+ *
+ *    java -Dadb.restart=10 -Dadb.backoff=1 -cp src edu.nyu.cs.adb.Database
+ *
+ * Replicated variables can use quorum replication instead of available
+ * copies, with read quorum R and write quorum W, where R + W and 2W must be
+ * greater than the number of sites:
+ *
+ *    java -Dadb.quorum=<R>,<W> -cp src edu.nyu.cs.adb.Database
+ *
+ * Variables can be placed on a consistent hashing ring instead, with given
+ * number of virtual nodes per site, a default replication factor and factors
+ * for ranges of variables:
+ *
+ *    java -Dadb.replication=3,1-1000:5 -Dadb.vnodes=64
+ *         -cp src edu.nyu.cs.adb.Database
+ *
+ * Sites can run as separate processes, each one started with SiteServer and
+ * the same site, variable, placement and log properties. The TM then connects
+ * to the given addresses, in site order, and the number of sites is the
+ * number of addresses:
+ *
+ *    java -Dadb.sites=2 -cp src edu.nyu.cs.adb.SiteServer 1 7001
+ *    java -Dadb.sites=2 -cp src edu.nyu.cs.adb.SiteServer 2 7002
+ *    java -Dadb.remote=localhost:7001,localhost:7002
+ *         -cp src edu.nyu.cs.adb.Database
+ *
+ * Catching up (adb.catchup) and verify() compare two sites in one process, so
+ * they are not available with remote sites.
  *  
  * -----------------------------------------------------------------------
  * @author Jingxin Zhu (jz1371)
@@ -38,17 +117,55 @@ public class Database {
     
     TransactionManager tm;
     
-    if (args.length == 0) {
-      tm = new TransactionManager();
-    } else{
+    if (args.length == 1) {
       tm = new TransactionManager(args[0]);
+    } else{
+      tm = new TransactionManager();
     }
     
-    int nDatabaseManagers = 10;    
-    tm.init(nDatabaseManagers);  
+    int nDatabaseManagers = Integer.getInteger("adb.sites", 10);
+    int nVariables = Integer.getInteger("adb.variables", 20);
+    tm.setCatchUpBatchSize(Integer.getInteger("adb.catchup", 0));
+    tm.setSiteExecutors(Boolean.getBoolean("adb.siteexecutors"));
+    tm.setReplicaSelection(System.getProperty("adb.replicas", "ordered"));
+    tm.setConcurrencyPolicy(System.getProperty("adb.concurrency", "waitdie"));
+    tm.setRestart(Integer.getInteger("adb.restart", 0),
+        Integer.getInteger("adb.backoff", 1));
+    String replication = System.getProperty("adb.replication");
+    if (replication != null) {
+      tm.setHashRing(Integer.getInteger("adb.vnodes", 64), replication);
+    }
+    String quorum = System.getProperty("adb.quorum");
+    if (quorum != null) {
+      String[] sizes = quorum.split(",");
+      tm.setQuorum(Integer.parseInt(sizes[0].trim()),
+          Integer.parseInt(sizes[1].trim()));
+    }
+    String logDir = System.getProperty("adb.logdir");
+    if (logDir != null) {
+      tm.setLogDirectory(logDir,
+          Boolean.parseBoolean(System.getProperty("adb.groupcommit", "true")));
+      tm.setCheckpointInterval(Integer.getInteger("adb.checkpoint", 0));
+    }
+    String remote = System.getProperty("adb.remote");
+    if (remote != null) {
+      List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+      for (String address : remote.split(",")) {
+        String[] hostPort = address.trim().split(":");
+        addresses.add(new InetSocketAddress(hostPort[0],
+            Integer.parseInt(hostPort[1])));
+      }
+      tm.setRemoteSites(addresses);
+      nDatabaseManagers = addresses.size();
+    }
+    tm.init(nDatabaseManagers, nVariables);
     System.out.println("Database starts, use exit() to exit database >>");
     System.out.println();
-    tm.run();
+    if (args.length > 1) {
+      tm.runSessions(Arrays.asList(args));
+    } else {
+      tm.run();
+    }
     
   }
 }
@@ -1,11 +1,18 @@
 package edu.nyu.cs.adb;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Database Manager (DM) is responsible for local site, for maintaining the lock
@@ -17,31 +24,71 @@ import java.util.Set;
  * @author Wuping Lei
  *
  */
-public class DatabaseManager {
+public class DatabaseManager implements Site {
 
   // indicate whether site is up or down
-  private boolean _siteStatus;
+  private volatile boolean _siteStatus;
 
   private int _siteIndex;
-  private TransactionManager _tm;
+
+  // transaction manager, or site server when this site runs remotely
+  private SiteContext _tm;
 
   // record the last time that the site fails
   private int _lastFailTime;
 
-  // Map that stores all the data this site has, including multiversion
-  private Map<Integer, List<Data>> _dataMap = new HashMap<Integer, List<Data>>();
+  // Stores all the data this site has, including multiversion
+  private DataStore _dataMap;
+
+  // write-ahead log of committed writes, null if logging is disabled
+  private SiteLog _log;
 
-  // Map that store all the dirty Data that written by some transactions before
+  // if true, log is forced to disk once per tick by TM instead of at each
   // commit
-  private Map<Integer, Data> _uncommitDataMap = new HashMap<Integer, Data>();
+  private boolean _groupCommit;
+
+  // checkpoint file of this site, and number of commits between checkpoints
+  // (0 if checkpoints are disabled)
+  private File _checkpointFile;
+  private int _checkpointInterval;
+  private int _commitsSinceCheckpoint = 0;
+
+  // Maps below are concurrent, since reads and writes of different variables
+  // may run at the same time. The entries of one variable (lock list, wait
+  // queue) are only touched under the TM stripe lock of that variable, and
+  // commit, abort, fail and recover run alone.
+
+  // Transactions prepared by two-phase commit, whose writes are in the log
+  private Set<Integer> _prepared = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  // Creates the concurrent set of a transaction in the indexes below.
+  private static final Function<Integer, Set<Integer>> NEW_SET =
+      new Function<Integer, Set<Integer>>() {
+    @Override
+    public Set<Integer> apply(Integer tid) {
+      return Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    }
+  };
+
+  // lock table maintained by this site, which also stages the values written
+  // by transactions before commit and what their last write changed
+  private LockTable _lockTable;
+
+  // Map<Transaction id, Set of variable indexes it holds locks on>, kept in
+  // sync with lock table so commit and abort only visit locks held
+  private Map<Integer, Set<Integer>> _lockIndex = new ConcurrentHashMap<Integer, Set<Integer>>();
+
+  // Map<Variable index, FIFO queue of lock requests waiting for that variable>
+  private Map<Integer, LinkedList<Lock>> _waitTable = new ConcurrentHashMap<Integer, LinkedList<Lock>>();
 
-  // lock table maintained by this site
-  private Map<Integer, List<Lock>> _lockTable = new HashMap<Integer, List<Lock>>();
+  // Map<Transaction id, Set of variable indexes it has queued lock requests
+  // for>
+  private Map<Integer, Set<Integer>> _waitIndex = new ConcurrentHashMap<Integer, Set<Integer>>();
 
   // Set of all the transactions accessed in this site
-  private Set<Integer> _accessedTransactions = new HashSet<Integer>();
+  private Set<Integer> _accessedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
-  public DatabaseManager(int index, TransactionManager tm) {
+  public DatabaseManager(int index, SiteContext tm) {
     _siteStatus = true;
     _siteIndex = index;
     _tm = tm;
@@ -49,16 +96,137 @@ public class DatabaseManager {
   }
 
   /**
-   * initialize the dataMap based on the site index.
+   * initialize the dataMap based on the site index, storing the variables
+   * the placement puts at this site. Default values are not materialized
+   * until variables are written.
+   * 
+   * @param nVariables
+   *          number of variables in database
+   * @param placement
+   *          sites storing each variable
    */
-  public void init() {
-    for (int i = 1; i <= 20; i++) {
-      List<Data> dataList = new ArrayList<Data>();
-      if (i % 2 == 0 || (1 + i % 10) == _siteIndex) {
-        dataList.add(new Data(i, 10 * i));
-        _dataMap.put(i, dataList);
+  @Override
+  public void init(int nVariables, Placement placement) {
+    _dataMap = new DataStore(nVariables, placement, _siteIndex);
+    _lockTable = new LockTable();
+  }
+
+  /**
+   * Open the write-ahead log of this site in given directory, and rebuild the
+   * committed values by mapping the last checkpoint and replaying the log
+   * written after it. These values become initial versions. Prepared writes
+   * in doubt are not applied until the transaction is resolved.
+   * 
+   * @param dir
+   *          log directory
+   * @param groupCommit
+   *          if true, log is only forced by flushLog, otherwise at each commit
+   * @param checkpointInterval
+   *          number of commits between checkpoints, 0 to disable checkpoints
+   */
+  @Override
+  public void openLog(File dir, boolean groupCommit, int checkpointInterval) {
+    _groupCommit = groupCommit;
+    _checkpointFile = new File(dir, "site" + _siteIndex + ".ckpt");
+    _checkpointInterval = checkpointInterval;
+    try {
+      Checkpoint checkpoint = Checkpoint.open(_checkpointFile);
+      if (checkpoint != null) {
+        _dataMap.setBase(checkpoint);
+      }
+      _log = new SiteLog(new File(dir, "site" + _siteIndex + ".log"));
+      for (int[] record : _log.replay()) {
+        _dataMap.load(record[0], record[1], record[2]);
       }
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      _log = null;
+    }
+  }
+
+  /**
+   * Get the transaction whose prepared writes were found in the log without a
+   * commit or abort record when it was opened, and are still in doubt.
+   * 
+   * @return transaction id, or 0 if none
+   */
+  @Override
+  public int getInDoubtTransaction() {
+    return _log == null ? 0 : _log.getInDoubt();
+  }
+
+  /**
+   * Resolve the transaction in doubt with the outcome the transaction manager
+   * decided: apply and commit its prepared writes, or discard them.
+   * 
+   * @param tid
+   *          transaction id
+   * @param commitTime
+   *          commit time, or -1 if the transaction aborted
+   */
+  @Override
+  public void resolve(int tid, int commitTime) {
+    if (_log == null || _log.getInDoubt() != tid) {
+      return;
+    }
+    if (commitTime != -1) {
+      for (int[] record : _log.getInDoubtWrites()) {
+        _dataMap.load(record[0], record[1], record[2]);
+      }
+      _log.commit(commitTime);
+    } else {
+      _log.abort(tid);
+    }
+    flushLog();
+  }
+
+  /**
+   * Write a checkpoint of the committed values of this site, then truncate
+   * the log it covers.
+   */
+  public void checkpoint() {
+    if (_log == null) {
+      return;
     }
+    try {
+      _log.flush();
+      _dataMap.writeCheckpoint(_checkpointFile);
+      _log.truncate();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+    _commitsSinceCheckpoint = 0;
+  }
+
+  /**
+   * Force the logged commits to disk, used by TM for group commit.
+   */
+  @Override
+  public void flushLog() {
+    if (_log == null) {
+      return;
+    }
+    try {
+      _log.flush();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Flush and close the write-ahead log.
+   */
+  @Override
+  public void closeLog() {
+    if (_log == null) {
+      return;
+    }
+    try {
+      _log.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+    _log = null;
   }
 
   /**
@@ -66,6 +234,7 @@ public class DatabaseManager {
    * 
    * @return
    */
+  @Override
   public int getIndex() {
     return _siteIndex;
   }
@@ -75,6 +244,7 @@ public class DatabaseManager {
    * 
    * @return true if site is up, false if site is down.
    */
+  @Override
   public boolean getStatus() {
     return _siteStatus;
   }
@@ -88,33 +258,129 @@ public class DatabaseManager {
     _siteStatus = status;
   }
 
-  /* Set corresponding lock for given variable */
+  /*
+   * Set corresponding lock for given variable, escalating a read lock the
+   * transaction holds if type is write
+   */
   private void setLock(int tid, int varIndex, Lock.Type type) {
-    List<Lock> lockList = null;
-    if (_lockTable.containsKey(varIndex)) {
-      lockList = _lockTable.get(varIndex);
-      lockList.add(new Lock(tid, type));
-    } else {
-      lockList = new ArrayList<Lock>();
-      lockList.add(new Lock(tid, type));
-      _lockTable.put(varIndex, lockList);
+    _lockTable.lock(tid, varIndex, type);
+    addToIndex(_lockIndex, tid, varIndex);
+  }
+
+  /* Add variable index to the set of given transaction in the index */
+  private void addToIndex(Map<Integer, Set<Integer>> index, int tid,
+      int varIndex) {
+    // locks of one transaction may be granted by several threads at once,
+    // so the set is created atomically
+    index.computeIfAbsent(tid, NEW_SET).add(varIndex);
+  }
+
+  /**
+   * Queue a lock request of given transaction for given variable, which will
+   * be granted when the conflicting locks are released. Only the transactions
+   * allowed to wait by the concurrency policy should be queued. If the
+   * transaction has already queued a read request, it is upgraded to write.
+   * 
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   * @param type
+   *          lock type requested
+   */
+  @Override
+  public void enqueueLock(int tid, int varIndex, Lock.Type type) {
+    LinkedList<Lock> queue = _waitTable.get(varIndex);
+    if (queue == null) {
+      queue = new LinkedList<Lock>();
+      _waitTable.put(varIndex, queue);
+    }
+    for (Lock request : queue) {
+      if (request.getTranId() == tid) {
+        if (type == Lock.Type.WRITE) {
+          request.escalateLock();
+        }
+        return;
+      }
+    }
+    queue.add(new Lock(tid, type));
+    addToIndex(_waitIndex, tid, varIndex);
+  }
+
+  /* Remove the queued lock request of given transaction on given variable */
+  private void dequeueLock(int tid, int varIndex) {
+    LinkedList<Lock> queue = _waitTable.get(varIndex);
+    if (queue == null) {
+      return;
+    }
+    Iterator<Lock> it = queue.iterator();
+    while (it.hasNext()) {
+      if (it.next().getTranId() == tid) {
+        it.remove();
+      }
+    }
+    if (queue.isEmpty()) {
+      _waitTable.remove(varIndex);
     }
   }
 
   /*
-   * Get the corresponding lock for given variable and given transaction If the
-   * transaction holds no lock return null
-   */
-  private Lock getLock(int tid, int varIndex) {
-    if (_lockTable.containsKey(varIndex)) {
-      List<Lock> lockList = _lockTable.get(varIndex);
-      for (Lock lc : lockList) {
-        if (lc.getTranId() == tid) {
-          return lc;
-        }
+   * Grant the queued lock requests of given variable from the head of the
+   * queue, as long as they do not conflict with the current holders. Shared
+   * readers at the head are granted together. TM is notified of every grant.
+   */
+  private void grantWaiting(int varIndex) {
+    LinkedList<Lock> queue = _waitTable.get(varIndex);
+    if (queue == null) {
+      return;
+    }
+    while (!queue.isEmpty()) {
+      Lock request = queue.peek();
+      int tid = request.getTranId();
+      if (hasConflict(tid, varIndex, request.getType())) {
+        break;
+      }
+      queue.poll();
+      Set<Integer> varSet = _waitIndex.get(tid);
+      varSet.remove(varIndex);
+      if (varSet.isEmpty()) {
+        _waitIndex.remove(tid);
       }
+      setLock(tid, varIndex, request.getType());
+      _accessedTransactions.add(tid);
+      _tm.lockGranted(tid, varIndex, _siteIndex);
+    }
+    if (queue.isEmpty()) {
+      _waitTable.remove(varIndex);
     }
-    return null;
+  }
+
+  /*
+   * Remove all the queued requests of given transaction, then grant waiting
+   * requests on the variables whose locks it has released or which it was
+   * queued for.
+   */
+  private void grantReleased(int tid, Set<Integer> releasedVars) {
+    Set<Integer> queuedVars = _waitIndex.remove(tid);
+    if (queuedVars != null) {
+      for (Integer varIndex : queuedVars) {
+        dequeueLock(tid, varIndex);
+        grantWaiting(varIndex);
+      }
+    }
+    if (releasedVars != null) {
+      for (Integer varIndex : releasedVars) {
+        grantWaiting(varIndex);
+      }
+    }
+  }
+
+  /*
+   * Release all the locks the transaction holds on given variable. Return true
+   * if one of them is write lock.
+   */
+  private boolean releaseLock(int tid, int varIndex) {
+    return _lockTable.release(tid, varIndex);
   }
 
   /*
@@ -122,73 +388,290 @@ public class DatabaseManager {
    * whether the transaction can get the lock it wants
    */
   private boolean hasConflict(int tid, int varIndex, Lock.Type type) {
-    if (!_lockTable.containsKey(varIndex)) {
-      return false;
+    return hasConflict(tid, varIndex, type, null);
+  }
+
+  /*
+   * Check whether there is conflict with the transaction on the variable, and
+   * append the conflicting transactions to given buffer unless it is null.
+   */
+  private boolean hasConflict(int tid, int varIndex, Lock.Type type,
+      IntList conflicts) {
+    return _lockTable.hasConflict(tid, varIndex, type, conflicts);
+  }
+
+
+  /**
+   * Recover this site, for all the replicate variable, makes them unavailable
+   */
+  public void recover() {
+    recover(true);
+  }
+
+  /**
+   * Recover this site. With quorum replication, stale replicas are told apart
+   * by version numbers, so replicated variables may stay available.
+   * 
+   * @param replicatedUnavailable
+   *          whether to make replicated variables unavailable
+   */
+  @Override
+  public void recover(boolean replicatedUnavailable) {
+    _siteStatus = true;
+    if (replicatedUnavailable) {
+      // set the last commit variable to unavailable to read, and set the
+      // unavailable time for the variable which is the time it fails
+      // When a particular version of variable is unavailable, it will never
+      // become available, but we may have new version of variable
+      _dataMap.setReplicatedUnavailable(_lastFailTime);
     }
-    List<Lock> lockList = _lockTable.get(varIndex);
-    if (type == Lock.Type.READ) {
-      for (Lock lc : lockList) {
-        // The only conflict with read is some other transaction has a write
-        // lock
-        if (lc.getTranId() != tid && lc.getType() == Lock.Type.WRITE) {
-          return true;
+  }
+
+  /**
+   * Catch up a recovered site: pull the last committed versions of replicated
+   * variables from up to date peers in batches, and make them available. A
+   * variable is only taken from a peer where it is available and not write
+   * locked, since a write in progress would not reach this site. Variables no
+   * peer can provide stay unavailable until written.
+   * 
+   * If some peer has all its replicated variables available, only the ranges
+   * where the hash trees of this site and that peer differ are transferred.
+   * 
+   * @param peers
+   *          other sites which are up
+   * @param batchSize
+   *          number of variables per transfer
+   * @return number of variables transferred
+   */
+  public int catchUp(List<DatabaseManager> peers, int batchSize) {
+    if (peers.isEmpty()) {
+      return 0;
+    }
+    // with partial replication a peer may not store all the variables here
+    for (DatabaseManager peer : peers) {
+      if (_dataMap.isFullyReplicated()
+          && peer._dataMap.isReplicatedAvailable()) {
+        return catchUpFrom(peer, batchSize);
+      }
+    }
+    int oldest = _tm.getOldestReadonlyTimestamp();
+    int caughtUp = 0;
+    // variables whose value may differ from the default at some site
+    Set<Integer> remaining = new HashSet<Integer>();
+    for (int varIndex : _dataMap.getWrittenVariables()) {
+      if (_dataMap.isReplicated(varIndex)) {
+        remaining.add(varIndex);
+      }
+    }
+    DatabaseManager source = peers.get(0);
+    for (DatabaseManager peer : peers) {
+      for (int varIndex : peer._dataMap.getWrittenVariables()) {
+        if (_dataMap.isReplicated(varIndex) && _dataMap.contains(varIndex)) {
+          remaining.add(varIndex);
         }
       }
-      return false;
-    } else {
-      for (Lock lc : lockList) {
-        // As long as other transaction holds a lock, it will conflict with
-        // write
-        if (lc.getTranId() != tid) {
-          return true;
+    }
+    for (DatabaseManager peer : peers) {
+      List<Integer> vars = new ArrayList<Integer>(remaining);
+      Collections.sort(vars);
+      for (int from = 0; from < vars.size(); from += batchSize) {
+        List<Integer> batch = vars.subList(from,
+            Math.min(from + batchSize, vars.size()));
+        for (Data d : peer.exportVersions(batch)) {
+          commitCaughtUp(d, oldest);
+          remaining.remove(d.getIndex());
+          caughtUp++;
         }
       }
-      return false;
+    }
+    // Default versions are the same at all sites, so they are up to date if
+    // they are at source, except for the variables being written there. This
+    // only holds if source stores all the replicated variables.
+    if (_dataMap.isFullyReplicated()
+        && source._dataMap.getDefaultsAccessible()) {
+      _dataMap.setDefaultsAccessible();
+      for (Integer varIndex : source.getWriteLockedVariables()) {
+        remaining.add(varIndex);
+      }
+      for (Integer varIndex : remaining) {
+        _dataMap.setUnavailable(varIndex, _lastFailTime);
+      }
+    }
+    logCaughtUp();
+    return caughtUp;
+  }
+
+  /*
+   * Catch up from a peer whose replicated variables are all available. Outside
+   * the ranges where the hash trees differ, the last committed versions here
+   * are the same as the peer's, so they only need to be made available again.
+   * Older versions this site kept are still unavailable since it failed.
+   */
+  private int catchUpFrom(DatabaseManager source, int batchSize) {
+    int oldest = _tm.getOldestReadonlyTimestamp();
+    int caughtUp = 0;
+    List<Integer> batch = new ArrayList<Integer>();
+    for (int[] range : diff(source)) {
+      for (int varIndex = range[0]; varIndex <= range[1]; varIndex++) {
+        if (_dataMap.isReplicated(varIndex)) {
+          batch.add(varIndex);
+        }
+        if (batch.size() == batchSize
+            || (varIndex == range[1] && !batch.isEmpty())) {
+          for (Data d : source.exportVersions(batch)) {
+            // the same value may be a different version, which this site
+            // missed while it was down
+            if (!d.isSameVersion(_dataMap.getLatest(d.getIndex()))) {
+              commitCaughtUp(d, oldest);
+              caughtUp++;
+            }
+          }
+          batch.clear();
+        }
+      }
+    }
+    _dataMap.setReplicatedAvailable();
+    for (Integer varIndex : source.getWriteLockedVariables()) {
+      _dataMap.setUnavailable(varIndex, _lastFailTime);
+    }
+    logCaughtUp();
+    return caughtUp;
+  }
+
+  /* Commit a version pulled from a peer, and append it to the log */
+  private void commitCaughtUp(Data d, int oldest) {
+    _dataMap.commit(d, oldest);
+    if (_log != null) {
+      _log.append(d.getIndex(), d.getValue(), d.getVersion());
+    }
+  }
+
+  /*
+   * Close the versions pulled from peers with a commit record and force it,
+   * so that a restart does not lose them.
+   */
+  private void logCaughtUp() {
+    if (_log != null && _log.commit(_tm.getCurrentTime())) {
+      flushLog();
     }
   }
 
   /**
-   * Recover this site, for all the replicate variable, makes them unavailable
+   * Find the variable ranges where the committed versions of replicated
+   * variables at this site differ from the ones at given site, by comparing
+   * their hash trees.
+   * 
+   * @param peer
+   * @return list of ranges, each one {first variable index, last variable
+   *         index}
    */
-  public void recover() {
-    _siteStatus = true;
-    for (Integer varIndex : _dataMap.keySet()) {
-      List<Data> dataList;
-      if (varIndex % 2 == 0) {
-        dataList = _dataMap.get(varIndex);
-        Data d = dataList.get(dataList.size() - 1);
-        // set the last commit variable to unavailable to read
-        d.setAccess(false);
-        // set the unavailable time for the variable which is the time it fails
-        // When a particular version of variable is unavailable, it will never
-        // become available, but we may have new version of variable
-        d.setUnavailableTime(_lastFailTime);
+  public List<int[]> diff(DatabaseManager peer) {
+    return _dataMap.getHashTree().diff(peer._dataMap.getHashTree());
+  }
+
+  /*
+   * Return the last committed versions of given variables which are available
+   * and not write locked at this site.
+   */
+  private List<Data> exportVersions(List<Integer> vars) {
+    List<Data> result = new ArrayList<Data>();
+    for (Integer varIndex : vars) {
+      if (!hasWriteLock(varIndex)) {
+        Data d = _dataMap.getLatest(varIndex);
+        if (d.getAccess()) {
+          result.add(d);
+        }
       }
     }
+    return result;
+  }
+
+  /* Check whether some transaction holds write lock on given variable */
+  private boolean hasWriteLock(int varIndex) {
+    return _lockTable.hasWriter(varIndex);
+  }
+
+  /* Return indexes of variables some transaction holds write lock on */
+  private List<Integer> getWriteLockedVariables() {
+    List<Integer> result = new ArrayList<Integer>();
+    _lockTable.getWriteLocked(result);
+    return result;
   }
 
   /**
-   * Set the site status to false, clear the lock table, accessedTransaction,
-   * uncommitDataMap etc
+   * Set the site status to false, clear the lock table with the staged
+   * values, accessedTransaction etc
    */
+  @Override
   public void fail() {
     _siteStatus = false;
     _lockTable.clear();
+    _lockIndex.clear();
+    _waitTable.clear();
+    _waitIndex.clear();
     _accessedTransactions.clear();
-    _uncommitDataMap.clear();
+    _prepared.clear();
     _lastFailTime = _tm.getCurrentTime();
   }
 
+  /**
+   * Check whether a read-only transaction can read given variable at this
+   * site, without reading it.
+   * 
+   * @param t
+   *          read-only transaction
+   * @param varIndex
+   * @return true if this site has a version readable by the transaction
+   */
+  @Override
+  public boolean hasSnapshotVersion(Transaction t, int varIndex) {
+    if (!_siteStatus || !_dataMap.contains(varIndex)) {
+      return false;
+    }
+    Data d = _dataMap.getVisible(varIndex, t.getTimestamp());
+    return d != null
+        && (d.getAccess() || d.getUnavailableTime() >= t.getTimestamp());
+  }
+
+  /**
+   * Get the version number of the last committed version of given variable.
+   * 
+   * @param varIndex
+   * @return version number
+   */
+  @Override
+  public int getVersion(int varIndex) {
+    return _dataMap.getLatest(varIndex).getVersion();
+  }
+
+  /**
+   * Get the number of transactions holding or waiting for locks at this site.
+   * 
+   * @return number of transactions
+   */
+  @Override
+  public int getOutstandingRequests() {
+    int count = _lockIndex.size();
+    for (Integer tid : _waitIndex.keySet()) {
+      if (!_lockIndex.containsKey(tid)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   /**
    * Return the data map this site has, used for dump all the variables
    * 
    * @return dataMap
    */
+  @Override
   public Map<Integer, Data> getDataMap() {
     Map<Integer, Data> result = new HashMap<Integer, Data>();
-    for (Integer varIndex : _dataMap.keySet()) {
-      List<Data> dataList = _dataMap.get(varIndex);
-      result.put(varIndex, dataList.get(dataList.size() - 1));
+    for (int varIndex = 1; varIndex <= _dataMap.getVariableCount(); varIndex++) {
+      if (_dataMap.contains(varIndex)) {
+        result.put(varIndex, _dataMap.getLatest(varIndex));
+      }
     }
     return result;
   }
@@ -199,6 +682,7 @@ public class DatabaseManager {
    * 
    * @return accessed transactions list
    */
+  @Override
   public List<Integer> getAccessedTransaction() {
     return new ArrayList<Integer>(_accessedTransactions);
   }
@@ -210,8 +694,9 @@ public class DatabaseManager {
    *          variable index
    * @return data
    */
+  @Override
   public Data dump(int varIndex) {
-    if (_dataMap.containsKey(varIndex)) {
+    if (_dataMap.contains(varIndex)) {
       return getLastCommitData(varIndex);
     } else {
       return null;
@@ -220,91 +705,136 @@ public class DatabaseManager {
 
   /* get the last commit data of that index */
   private Data getLastCommitData(int varIndex) {
-    List<Data> dataList = _dataMap.get(varIndex);
-    return dataList.get(dataList.size() - 1);
+    return _dataMap.getLatest(varIndex);
   }
 
   /**
-   * When there is no read-only transaction runnning, clear all the old version
-   * of all the variables on this site
+   * Remove the old versions which are not visible to any running read-only
+   * transaction, from all the variables on this site holding more than one
+   * version. Called when the oldest read-only transaction may have ended.
    */
-  public void clearAllVersions() {
-    for (Integer varIndex : _dataMap.keySet()) {
-      List<Data> dataList = _dataMap.get(varIndex);
-      while (dataList.size() > 1) {
-        dataList.remove(0);
+  @Override
+  public void sweepVersions() {
+    _dataMap.sweep(_tm.getOldestReadonlyTimestamp());
+  }
+
+  /**
+   * Get the number of committed versions kept on this site.
+   * 
+   * @return number of versions
+   */
+  @Override
+  public long getVersionsRetained() {
+    return _dataMap.getVersionsRetained();
+  }
+
+  /**
+   * Get the number of old versions reclaimed on this site so far.
+   * 
+   * @return number of versions
+   */
+  @Override
+  public long getVersionsReclaimed() {
+    return _dataMap.getVersionsReclaimed();
+  }
+
+  /**
+   * Prepare the given transaction for commit, the first phase of two-phase
+   * commit: append the values it wrote at this site and a prepare record to
+   * the log, and force the log, so that the writes survive a crash before
+   * the commit arrives. Values are applied and locks released by commit.
+   * 
+   * @param tid
+   *          transaction id
+   * @return true if this site votes to commit, false if it is down
+   */
+  @Override
+  public boolean prepare(int tid) {
+    if (!_siteStatus) {
+      return false;
+    }
+    Set<Integer> varSet = _lockIndex.get(tid);
+    if (_log == null || varSet == null) {
+      return true;
+    }
+    for (Integer varIndex : varSet) {
+      Data d = _lockTable.getStaged(tid, varIndex);
+      if (d != null) {
+        _log.append(varIndex, d.getValue(), d.getVersion());
       }
     }
+    if (_log.prepare(tid)) {
+      _prepared.add(tid);
+      flushLog();
+    }
+    return true;
   }
 
   /**
-   * Commit the given transaction, write all the values in uncommitDataMap to
-   * dataMap and release all the lock it holds
+   * Commit the given transaction, write all the values it staged to
+   * dataMap and append them to the log unless prepared, and release all the
+   * lock it holds. Then grant the released locks to the queued requests
    * 
    * @param tid
    *          transaction id
    */
+  @Override
   public void commit(int tid) {
-    List<Lock> lockList = null;
-
-    // check wheter there is read-only transaction running
-    boolean hasRO = _tm.hasRunningReadonly();
-    for (Integer varIndex : _lockTable.keySet()) {
-      lockList = _lockTable.get(varIndex);
-      int size = lockList.size();
-      for (int i = size - 1; i >= 0; i--) {
-        Lock lc = lockList.get(i);
-        if (lc.getTranId() == tid) {
-
-          // If the lock type is write, means this transaction writes a variable
-          // in uncommitDataMap
-          if (lc.getType() == Lock.Type.WRITE) {
-            if (_uncommitDataMap.containsKey(varIndex)) {
-              List<Data> dataList = _dataMap.get(varIndex);
-              Data d = _uncommitDataMap.get(varIndex);
-              d.setCommitTime(_tm.getCurrentTime());
-
-              // If no read-only transaction, replace the old version
-              if (!hasRO) {
-                dataList.clear();
-              }
-              dataList.add(d);
-              _uncommitDataMap.remove(varIndex);
-            }
+    // start time of the oldest running read-only transaction
+    int oldest = _tm.getOldestReadonlyTimestamp();
+    boolean prepared = _prepared.remove(tid);
+    Set<Integer> varSet = _lockIndex.remove(tid);
+    if (varSet != null) {
+      for (Integer varIndex : varSet) {
+        // a value is staged only under the write lock of this transaction
+        Data d = _lockTable.getStaged(tid, varIndex);
+        releaseLock(tid, varIndex);
+        if (d != null) {
+          d.setCommitTime(_tm.getCurrentTime());
+
+          // old versions no running read-only transaction can read are dropped
+          _dataMap.commit(d, oldest);
+          if (_log != null && !prepared) {
+            _log.append(varIndex, d.getValue(), d.getVersion());
           }
-          lockList.remove(i);
-          break;
         }
       }
     }
+    if (_log != null && _log.commit(_tm.getCurrentTime())) {
+      if (_checkpointInterval > 0
+          && ++_commitsSinceCheckpoint >= _checkpointInterval) {
+        checkpoint();
+      } else if (!_groupCommit) {
+        flushLog();
+      }
+    }
     // remove this transaction from accessed list
     _accessedTransactions.remove(tid);
+    grantReleased(tid, varSet);
   }
 
   /**
    * Abort the given transaction, release all the locks it holds And erase the
-   * data it has written
+   * data it has written. Then grant the released locks to the queued requests
    * 
    * @param tid
    *          transaction id
    */
+  @Override
   public void abort(int tid) {
-    List<Lock> lockList = null;
-    for (Integer varIndex : _lockTable.keySet()) {
-      lockList = _lockTable.get(varIndex);
-      int size = lockList.size();
-      for (int i = size - 1; i >= 0; i--) {
-        if (lockList.get(i).getTranId() == tid) {
-          if (lockList.get(i).getType() == Lock.Type.WRITE) {
-            _uncommitDataMap.remove(varIndex);
-          }
-          lockList.remove(i);
-          break;
-        }
+    if (_prepared.remove(tid) && _log.abort(tid) && !_groupCommit) {
+      flushLog();
+    }
+    Set<Integer> varSet = _lockIndex.remove(tid);
+    if (varSet != null) {
+      // staged values are dropped with the write locks
+      for (Integer varIndex : varSet) {
+        releaseLock(tid, varIndex);
       }
     }
     // remove this transaction from accessed list
     _accessedTransactions.remove(tid);
+    grantReleased(tid, varSet);
   }
 
   /**
@@ -321,7 +851,25 @@ public class DatabaseManager {
    * @return data
    */
   public Data read(Transaction t, int varIndex) {
-    if (!_dataMap.containsKey(varIndex)) {
+    return read(t, varIndex, null);
+  }
+
+  /**
+   * Read given variable as read, and if the read fails because other
+   * transactions hold a write lock on it, append them to given buffer, so
+   * that the caller needs no second call to find the conflicts.
+   * 
+   * @param t
+   *          transaction
+   * @param varIndex
+   *          variable index
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return data
+   */
+  @Override
+  public Data read(Transaction t, int varIndex, IntList conflicts) {
+    if (!_dataMap.contains(varIndex)) {
       return null;
     }
     int tid = t.getTranId();
@@ -329,25 +877,15 @@ public class DatabaseManager {
     // If the transaction is read-write, get the lock and see whether we have
     // conflict
     if (t.getType() == Transaction.Type.RW) {
-      boolean hasConflict = false;
-      Lock lock = null;
-      if (_lockTable.containsKey(varIndex)) {
-        List<Lock> lockList = _lockTable.get(varIndex);
-        for (Lock lc : lockList) {
-          if (lc.getTranId() == tid) {
-            lock = lc;
-          } else {
-            if (lc.getType() == Lock.Type.WRITE) {
-              hasConflict = true;
-            }
-          }
-        }
-      }
-
-      if (hasConflict) {
+      if (hasConflict(tid, varIndex, Lock.Type.READ, conflicts)) {
         return null;
       } else {
-        if (lock == null || lock.getType() == Lock.Type.READ) {
+        Lock.Type lock = _lockTable.getLockType(tid, varIndex);
+        Data staged = lock == Lock.Type.WRITE ? _lockTable.getStaged(tid,
+            varIndex) : null;
+        // a write lock granted from the queue has nothing staged until the
+        // write runs again, so read the last commit then
+        if (staged == null) {
           Data d = getLastCommitData(varIndex);
           // If the variable is available return the variable
           if (d.getAccess()) {
@@ -362,23 +900,15 @@ public class DatabaseManager {
             return null;
           }
         } else {
-          // if transaction has write lock, read it from uncommitDataMap
+          // if transaction has write lock, read the value it staged
           _accessedTransactions.add(tid);
-          return _uncommitDataMap.get(varIndex);
+          return staged;
         }
       }
     } else {
       // For read-only transaction, get last commit version before it starts.
-      List<Data> dataList = _dataMap.get(varIndex);
-      Data d = null;
       int ttime = t.getTimestamp();
-      for (Data dt : dataList) {
-        if (dt.getCommitTime() <= ttime) {
-          d = dt;
-        } else {
-          break;
-        }
-      }
+      Data d = _dataMap.getVisible(varIndex, ttime);
       if (d == null) {
         return null;
       }
@@ -402,8 +932,8 @@ public class DatabaseManager {
 
   /**
    * Given a variable index, value to write and transaction, update the variable
-   * and set the lock. But we update it in uncommitDataMap before commit, when
-   * commit, writes all the values into dataMap
+   * and set the lock. But the value is staged in the lock table before commit,
+   * when commit, writes all the values into dataMap
    * 
    * @param t
    *          transaction id
@@ -413,29 +943,88 @@ public class DatabaseManager {
    *          the value to write into variable
    */
   public void write(Transaction t, int varIndex, int value) {
+    write(t, varIndex, value, -1, null);
+  }
+
+  /**
+   * Write given value with given version number to the variable, used by
+   * quorum writes, whose version is the next one after the newest version of
+   * the quorum.
+   * 
+   * @param t
+   * @param varIndex
+   * @param value
+   * @param version
+   */
+  public void write(Transaction t, int varIndex, int value, int version) {
+    write(t, varIndex, value, version, null);
+  }
+
+  /**
+   * Get the write lock of given variable, escalating a read lock the
+   * transaction holds, and write given value in the same call. If other
+   * transactions hold conflicting locks, nothing is changed and they are
+   * appended to given buffer. A lock taken here can be given back with
+   * undoWrite until the transaction commits or aborts.
+   * 
+   * @param t
+   *          transaction
+   * @param varIndex
+   *          variable index
+   * @param value
+   *          the value to write into variable
+   * @param version
+   *          version number of the value, or -1 for the version after the
+   *          last committed one at this site
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return true if written, false if there is conflict
+   */
+  @Override
+  public boolean write(Transaction t, int varIndex, int value, int version,
+      IntList conflicts) {
     int tid = t.getTranId();
-    Lock lc = getLock(tid, varIndex);
-    if (hasConflict(tid, varIndex, Lock.Type.WRITE)) {
+    if (hasConflict(tid, varIndex, Lock.Type.WRITE, conflicts)) {
+      return false;
+    }
+    // set write lock, or escalate the read lock the transaction holds, and
+    // stage the value in the same call
+    Lock.Type held = _lockTable.write(tid, varIndex, value, version != -1
+        ? version : _dataMap.getLatestVersion(varIndex) + 1);
+    if (held == null) {
+      addToIndex(_lockIndex, tid, varIndex);
+      _accessedTransactions.add(tid);
+    }
+    return true;
+  }
+
+  /**
+   * Undo the last write of given variable by given transaction, when it is
+   * blocked at another site: restore the value it had written before, if
+   * any, and give back the write lock if the write took it, releasing it or
+   * turning it back into the read lock the transaction held before. Then
+   * grant waiting requests the lock no longer blocks.
+   * 
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   */
+  @Override
+  public void undoWrite(int tid, int varIndex) {
+    if (!_lockTable.undoWrite(tid, varIndex)) {
       return;
     }
-    if (lc == null) {
-      // if transaction holds no lock, set write lock
-      setLock(tid, varIndex, Lock.Type.WRITE);
-    } else {
-      // if transaction holds read lock before, escalate that lock
-      if (lc.getType() == Lock.Type.READ) {
-        lc.escalateLock();
+    if (_lockTable.getLockType(tid, varIndex) == null) {
+      Set<Integer> varSet = _lockIndex.get(tid);
+      if (varSet != null) {
+        varSet.remove(varIndex);
+        if (varSet.isEmpty()) {
+          _lockIndex.remove(tid);
+        }
       }
     }
-    _accessedTransactions.add(tid);
-    // put it into uncommitDataMap
-    if (_uncommitDataMap.containsKey(varIndex)) {
-      Data d = _uncommitDataMap.get(varIndex);
-      d.setValue(value);
-    } else {
-      Data d = new Data(varIndex, value);
-      _uncommitDataMap.put(varIndex, d);
-    }
+    grantWaiting(varIndex);
   }
 
   /**
@@ -450,38 +1039,52 @@ public class DatabaseManager {
    * @return true if can write, false if can't
    */
   public boolean isWritable(int tid, int varIndex) {
-    if (!hasConflict(tid, varIndex, Lock.Type.WRITE)) {
-      setLock(tid, varIndex, Lock.Type.WRITE);
-      _accessedTransactions.add(tid);
-      return true;
-    } else {
+    return isWritable(tid, varIndex, null);
+  }
+
+  /**
+   * Check whether the transaction can get the write lock of given variable,
+   * and get it if it can, escalating a read lock it holds. Otherwise append
+   * the transactions holding conflicting locks to given buffer, in the same
+   * call.
+   * 
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return true if can write, false if can't
+   */
+  @Override
+  public boolean isWritable(int tid, int varIndex, IntList conflicts) {
+    if (hasConflict(tid, varIndex, Lock.Type.WRITE, conflicts)) {
       return false;
     }
+    setLock(tid, varIndex, Lock.Type.WRITE);
+    _accessedTransactions.add(tid);
+    return true;
   }
 
   /**
-   * Given a variable index return the list of transaction ids that have
-   * conflicts, i.e. other transactions have the lock on this variable.
+   * Given a variable index append the ids of the transactions that have
+   * conflicts, i.e. other transactions have the lock on this variable, to
+   * given buffer.
    * 
    * @param tid
    *          transaction id
    * @param varIndex
    *          variable index
-   * @return list of transaction ids
+   * @param conflicts
+   *          buffer of conflicting transaction ids
+   * @return false if this site does not store the variable
    */
-  public Set<Integer> getConflictTrans(int tid, int varIndex) {
-    if (!_dataMap.containsKey(varIndex)) {
-      return null;
-    }
-    Set<Integer> conflictSet = new HashSet<Integer>();
-    if (_lockTable.containsKey(varIndex)) {
-      List<Lock> lockList = _lockTable.get(varIndex);
-      for (Lock lc : lockList) {
-        if (lc.getTranId() != tid) {
-          conflictSet.add(lc.getTranId());
-        }
-      }
+  @Override
+  public boolean getConflictTrans(int tid, int varIndex, IntList conflicts) {
+    if (!_dataMap.contains(varIndex)) {
+      return false;
     }
-    return conflictSet;
+    hasConflict(tid, varIndex, Lock.Type.WRITE, conflicts);
+    return true;
   }
 }
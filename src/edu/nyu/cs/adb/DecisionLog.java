@@ -0,0 +1,106 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is the log of the transaction manager, recording the commit
+ * decision of each transaction committed in two phases as a fixed size record
+ * (transaction id, commit time). A decision is forced to disk before any site
+ * is told to commit, so a site which prepared a transaction and has no commit
+ * record for it can find out the outcome at restart: the transaction
+ * committed if its decision is in this log, and aborted otherwise, since
+ * nothing was committed anywhere before the decision was forced.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class DecisionLog {
+
+  private static final int RECORD_SIZE = 8;
+
+  private FileChannel _channel;
+  private ByteBuffer _buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+  // Map<Transaction id, commit time> of the decisions in the log
+  private Map<Integer, Integer> _decisions = new HashMap<Integer, Integer>();
+
+  public DecisionLog(File file) throws IOException {
+    _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+    long position = 0;
+    // a read shorter than one record only happens at a torn end of file
+    while (_channel.read(buffer, position) >= RECORD_SIZE) {
+      buffer.flip();
+      while (buffer.remaining() >= RECORD_SIZE) {
+        _decisions.put(buffer.getInt(), buffer.getInt());
+        position += RECORD_SIZE;
+      }
+      buffer.clear();
+    }
+    _channel.truncate(position);
+    _channel.position(position);
+  }
+
+  /**
+   * Append the commit decision of given transaction and force it to disk.
+   *
+   * @param tid
+   *          transaction id
+   * @param commitTime
+   * @throws IOException
+   */
+  public void commit(int tid, int commitTime) throws IOException {
+    _buffer.clear();
+    _buffer.putInt(tid);
+    _buffer.putInt(commitTime);
+    _buffer.flip();
+    while (_buffer.hasRemaining()) {
+      _channel.write(_buffer);
+    }
+    _channel.force(false);
+    _decisions.put(tid, commitTime);
+  }
+
+  /**
+   * Get the commit time of given transaction.
+   *
+   * @param tid
+   *          transaction id
+   * @return commit time, or -1 if there is no commit decision for it
+   */
+  public int getCommitTime(int tid) {
+    Integer time = _decisions.get(tid);
+    return time == null ? -1 : time;
+  }
+
+  /**
+   * Remove all the decisions, once no site is in doubt about them. Transaction
+   * ids start over with each input, so old decisions must not outlive the
+   * transactions they are about.
+   *
+   * @throws IOException
+   */
+  public void truncate() throws IOException {
+    _channel.truncate(0);
+    _channel.position(0);
+    _channel.force(false);
+    _decisions.clear();
+  }
+
+  /**
+   * Close the log.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    _channel.close();
+  }
+}
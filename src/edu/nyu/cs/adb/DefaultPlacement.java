@@ -0,0 +1,91 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The default placement: odd variables are stored at site (1 + index mod
+ * number of sites), even variables are replicated at all sites.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class DefaultPlacement implements Placement {
+
+  private int _nSites;
+  private int _nVariables;
+
+  // List of all sites, storing every even variable.
+  private List<Integer> _allSites;
+
+  // _siteLists.get(i - 1) is the list of only site i, storing odd variables
+  // whose (1 + index mod number of sites) is i.
+  private List<List<Integer>> _siteLists;
+
+  public DefaultPlacement(int nSites, int nVariables) {
+    _nSites = nSites;
+    _nVariables = nVariables;
+    List<Integer> allSites = new ArrayList<Integer>();
+    _siteLists = new ArrayList<List<Integer>>();
+    for (int index = 1; index <= nSites; index++) {
+      allSites.add(index);
+      _siteLists.add(Collections.singletonList(index));
+    }
+    _allSites = Collections.unmodifiableList(allSites);
+  }
+
+  @Override
+  public List<Integer> getSites(int varIndex) {
+    if (varIndex < 1 || varIndex > _nVariables) {
+      return null;
+    }
+    if (varIndex % 2 == 1) {
+      // store odd variable at (1 + index mod number of sites) site
+      return _siteLists.get(varIndex % _nSites);
+    } else {
+      // even variable are stored in all sites.
+      return _allSites;
+    }
+  }
+
+  @Override
+  public boolean isStoredAt(int varIndex, int siteIndex) {
+    return varIndex > 0 && varIndex <= _nVariables
+        && (isReplicated(varIndex) || 1 + varIndex % _nSites == siteIndex);
+  }
+
+  @Override
+  public boolean isReplicated(int varIndex) {
+    return varIndex % 2 == 0;
+  }
+
+  @Override
+  public boolean isFullyReplicated() {
+    return true;
+  }
+
+  @Override
+  public Set<Integer> getReplicationFactors() {
+    Set<Integer> result = new HashSet<Integer>();
+    result.add(1);
+    result.add(_nSites);
+    return result;
+  }
+
+  @Override
+  public long getVariableCount(int siteIndex) {
+    long count = _nVariables / 2;
+    // odd variables stored at this site
+    int first = siteIndex - 1 == 0 ? _nSites : siteIndex - 1;
+    for (long i = first; i <= _nVariables; i += _nSites) {
+      if (i % 2 == 1) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,254 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Placement on a consistent hashing ring. Each site owns a number of virtual
+ * nodes at hashed points of the ring, and a variable is stored at the sites
+ * owning the first virtual nodes met clockwise from its own hash, as many as
+ * its replication factor. The points of a site only depend on its index, so
+ * adding or removing a site only moves the variables next to its points.
+ *
+ * The replication factor is given as a default factor followed by factors
+ * for ranges of variables, e.g. "3,1-1000:5,2001-3000:1".
+ *
+ * The sites of a variable only depend on the first point at or after its
+ * hash and on its factor, so the site list of each point is built once for
+ * each factor in use, and a lookup is one binary search.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class HashRingPlacement implements Placement {
+
+  private int _nSites;
+  private int _nVariables;
+
+  // points of the ring in increasing order, and the site owning each point
+  private long[] _points;
+  private int[] _owners;
+
+  // index of the first point at or after the start of each bucket, the
+  // buckets splitting the hash space evenly, so that finding the point of a
+  // hash takes a step or two instead of a binary search
+  private int _bucketBits;
+  private int[] _bucketStart;
+
+  // replication factor of variables not in any range, and the ranges, each
+  // one {first variable index, last variable index, factor}
+  private int _defaultFactor;
+  private List<int[]> _ranges = new ArrayList<int[]>();
+
+  private List<Integer> _allSites;
+
+  // site list of each point of the ring, indexed by replication factor,
+  // null for the factors not in use
+  private List<List<List<Integer>>> _replicas;
+
+  // number of variables stored at each site, counted on first use
+  private long[] _variableCounts;
+
+  public HashRingPlacement(int nSites, int nVariables, int virtualNodes,
+      String replication) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException(
+          "Invalid number of virtual nodes: " + virtualNodes);
+    }
+    _nSites = nSites;
+    _nVariables = nVariables;
+    parseReplication(replication);
+    _points = new long[nSites * virtualNodes];
+    _owners = new int[_points.length];
+    long[] keys = new long[_points.length];
+    for (int site = 1; site <= nSites; site++) {
+      for (int i = 0; i < virtualNodes; i++) {
+        int n = (site - 1) * virtualNodes + i;
+        keys[n] = hash(((long) site << 32) | i);
+        _points[n] = keys[n];
+      }
+    }
+    Arrays.sort(_points);
+    for (int site = 1; site <= nSites; site++) {
+      for (int i = 0; i < virtualNodes; i++) {
+        long key = keys[(site - 1) * virtualNodes + i];
+        _owners[Arrays.binarySearch(_points, key)] = site;
+      }
+    }
+    List<Integer> allSites = new ArrayList<Integer>();
+    for (int index = 1; index <= nSites; index++) {
+      allSites.add(index);
+    }
+    _allSites = Collections.unmodifiableList(allSites);
+    _bucketBits = 1;
+    while ((1 << _bucketBits) < 4 * _points.length && _bucketBits < 20) {
+      _bucketBits++;
+    }
+    _bucketStart = new int[1 << _bucketBits];
+    for (int b = 0; b < _bucketStart.length; b++) {
+      int pos = Arrays.binarySearch(_points, bucketLow(b));
+      _bucketStart[b] = pos < 0 ? -pos - 1 : pos;
+    }
+    _replicas = new ArrayList<List<List<Integer>>>(Collections.nCopies(
+        nSites + 1, (List<List<Integer>>) null));
+    for (Integer factor : getReplicationFactors()) {
+      if (factor < _nSites) {
+        _replicas.set(factor, buildReplicas(factor));
+      }
+    }
+  }
+
+  @Override
+  public List<Integer> getSites(int varIndex) {
+    if (varIndex < 1 || varIndex > _nVariables) {
+      return null;
+    }
+    int factor = getFactor(varIndex);
+    if (factor == _nSites) {
+      return _allSites;
+    }
+    long h = hash(varIndex);
+    int pos = _bucketStart[bucketOf(h)];
+    while (pos < _points.length && _points[pos] < h) {
+      pos++;
+    }
+    return _replicas.get(factor).get(pos % _points.length);
+  }
+
+  @Override
+  public boolean isStoredAt(int varIndex, int siteIndex) {
+    List<Integer> sites = getSites(varIndex);
+    if (sites == null) {
+      return false;
+    }
+    for (int i = 0; i < sites.size(); i++) {
+      if (sites.get(i) == siteIndex) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isReplicated(int varIndex) {
+    return getFactor(varIndex) > 1;
+  }
+
+  @Override
+  public boolean isFullyReplicated() {
+    for (Integer factor : getReplicationFactors()) {
+      if (factor > 1 && factor < _nSites) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Set<Integer> getReplicationFactors() {
+    Set<Integer> result = new HashSet<Integer>();
+    result.add(Math.min(_defaultFactor, _nSites));
+    for (int[] range : _ranges) {
+      result.add(Math.min(range[2], _nSites));
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized long getVariableCount(int siteIndex) {
+    if (_variableCounts == null) {
+      // one pass over the variables for all the sites
+      _variableCounts = new long[_nSites + 1];
+      for (int varIndex = 1; varIndex <= _nVariables; varIndex++) {
+        for (Integer site : getSites(varIndex)) {
+          _variableCounts[site]++;
+        }
+      }
+    }
+    return _variableCounts[siteIndex];
+  }
+
+  /* Bucket of given hash, buckets ordered like the signed hashes */
+  private int bucketOf(long h) {
+    return (int) ((h ^ Long.MIN_VALUE) >>> (64 - _bucketBits));
+  }
+
+  /* Smallest hash in given bucket */
+  private long bucketLow(int b) {
+    return ((long) b << (64 - _bucketBits)) ^ Long.MIN_VALUE;
+  }
+
+  /*
+   * Build the sorted list of the sites storing a variable of given factor
+   * whose hash falls before each point, walking clockwise from that point
+   * until enough distinct sites are found.
+   */
+  private List<List<Integer>> buildReplicas(int factor) {
+    List<List<Integer>> result = new ArrayList<List<Integer>>(_points.length);
+    for (int start = 0; start < _points.length; start++) {
+      List<Integer> sites = new ArrayList<Integer>(factor);
+      for (int pos = start; sites.size() < factor; pos++) {
+        int site = _owners[pos % _points.length];
+        if (!sites.contains(site)) {
+          sites.add(site);
+        }
+      }
+      Collections.sort(sites);
+      result.add(Collections.unmodifiableList(sites));
+    }
+    return result;
+  }
+
+  /* Replication factor of given variable, at most the number of sites */
+  private int getFactor(int varIndex) {
+    int factor = _defaultFactor;
+    for (int[] range : _ranges) {
+      if (varIndex >= range[0] && varIndex <= range[1]) {
+        factor = range[2];
+        break;
+      }
+    }
+    return Math.min(factor, _nSites);
+  }
+
+  private void parseReplication(String replication) {
+    String[] parts = replication.split(",");
+    try {
+      _defaultFactor = Integer.parseInt(parts[0].trim());
+      for (int i = 1; i < parts.length; i++) {
+        String[] rangeAndFactor = parts[i].trim().split(":");
+        String[] bounds = rangeAndFactor[0].split("-");
+        _ranges.add(new int[] { Integer.parseInt(bounds[0]),
+            Integer.parseInt(bounds[1]), Integer.parseInt(rangeAndFactor[1]) });
+      }
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid replication: "
+          + replication);
+    }
+    if (_defaultFactor < 1) {
+      throw new IllegalArgumentException("Invalid replication: "
+          + replication);
+    }
+    for (int[] range : _ranges) {
+      if (range[2] < 1) {
+        throw new IllegalArgumentException("Invalid replication: "
+            + replication);
+      }
+    }
+  }
+
+  private static long hash(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
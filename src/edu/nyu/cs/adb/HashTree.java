@@ -0,0 +1,144 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a hash tree (Merkle tree) over the last committed versions of
+ * the replicated variables of one site. A version is hashed with its value,
+ * version number and commit time, so a site which missed writes differs from
+ * its peers even if the last value written is the one it holds. The variable
+ * indexes are split into ranges, one per leaf. The hash of a leaf is the sum of
+ * the hashes of the variables in its range, and the hash of an inner node is
+ * the sum of its children, so updating one variable only updates the nodes on
+ * its path. A variable at its default version adds nothing, so trees need no
+ * setup. Two replicas find the ranges they differ in by comparing nodes from
+ * the root down.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class HashTree {
+
+  private static final int MAX_LEAVES = 4096;
+
+  private int _nVariables;
+  private int _nLeaves;
+
+  // nodes in heap order, root at 1 and leaves from nLeaves to 2 * nLeaves - 1
+  private long[] _nodes;
+
+  public HashTree(int nVariables) {
+    _nVariables = nVariables;
+    _nLeaves = 1;
+    while (_nLeaves < MAX_LEAVES && _nLeaves < nVariables) {
+      _nLeaves *= 2;
+    }
+    _nodes = new long[2 * _nLeaves];
+  }
+
+  /**
+   * Update the tree when the last committed version of given variable changes.
+   *
+   * @param varIndex
+   * @param oldHash
+   *          hash of the previous version
+   * @param newHash
+   *          hash of the new version
+   */
+  public void update(int varIndex, long oldHash, long newHash) {
+    long delta = newHash - oldHash;
+    if (delta == 0) {
+      return;
+    }
+    int node = _nLeaves + leafOf(varIndex);
+    while (node > 0) {
+      _nodes[node] += delta;
+      node /= 2;
+    }
+  }
+
+  /**
+   * Find the variable ranges in which this tree differs from the other one,
+   * built over the same number of variables.
+   *
+   * @param other
+   * @return list of ranges, each one {first variable index, last variable
+   *         index}
+   */
+  public List<int[]> diff(HashTree other) {
+    List<int[]> result = new ArrayList<int[]>();
+    diff(other, 1, result);
+    return result;
+  }
+
+  /**
+   * Check whether this tree equals the other one.
+   *
+   * @param other
+   * @return true if the root hashes are the same
+   */
+  public boolean sameAs(HashTree other) {
+    return _nodes[1] == other._nodes[1];
+  }
+
+  private void diff(HashTree other, int node, List<int[]> result) {
+    if (_nodes[node] == other._nodes[node]) {
+      return;
+    }
+    if (node >= _nLeaves) {
+      int leaf = node - _nLeaves;
+      int[] range = { firstOf(leaf), firstOf(leaf + 1) - 1 };
+      // merge adjacent ranges
+      if (!result.isEmpty() && result.get(result.size() - 1)[1] + 1 == range[0]) {
+        result.get(result.size() - 1)[1] = range[1];
+      } else {
+        result.add(range);
+      }
+      return;
+    }
+    diff(other, 2 * node, result);
+    diff(other, 2 * node + 1, result);
+  }
+
+  /* Leaf covering given variable */
+  private int leafOf(int varIndex) {
+    return (int) ((long) (varIndex - 1) * _nLeaves / _nVariables);
+  }
+
+  /* First variable index covered by given leaf */
+  private int firstOf(int leaf) {
+    // smallest index v with (v - 1) * nLeaves / nVariables >= leaf
+    return (int) (((long) leaf * _nVariables + _nLeaves - 1) / _nLeaves) + 1;
+  }
+
+  /**
+   * Hash of a version of given variable.
+   *
+   * @param varIndex
+   * @param value
+   * @param version
+   *          version number
+   * @param commitTime
+   * @return hash, 0 for the default version
+   */
+  public static long hash(int varIndex, int value, int version,
+      int commitTime) {
+    if (value == 10 * varIndex && version == 0 && commitTime == -1) {
+      return 0;
+    }
+    long h = mix(((long) varIndex << 32) ^ (value & 0xffffffffL));
+    h = mix(h ^ (((long) version << 32) | (commitTime & 0xffffffffL)));
+    return h;
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
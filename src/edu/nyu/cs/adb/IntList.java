@@ -0,0 +1,73 @@
+package edu.nyu.cs.adb;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, used as a reusable buffer on the read and
+ * write paths, so that collecting conflicting transactions neither boxes ids
+ * nor allocates once the buffer has grown to its working size.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class IntList {
+
+  private int[] _values;
+  private int _size = 0;
+
+  public IntList() {
+    this(8);
+  }
+
+  public IntList(int capacity) {
+    _values = new int[capacity];
+  }
+
+  public void add(int value) {
+    if (_size == _values.length) {
+      _values = Arrays.copyOf(_values, _values.length * 2);
+    }
+    _values[_size++] = value;
+  }
+
+  public int get(int i) {
+    return _values[i];
+  }
+
+  public void set(int i, int value) {
+    _values[i] = value;
+  }
+
+  public int removeLast() {
+    return _values[--_size];
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  public boolean isEmpty() {
+    return _size == 0;
+  }
+
+  public boolean contains(int value) {
+    for (int i = 0; i < _size; i++) {
+      if (_values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void addAll(IntList other) {
+    for (int i = 0; i < other._size; i++) {
+      add(other._values[i]);
+    }
+  }
+
+  /* Remove all the values, keeping the capacity */
+  public void clear() {
+    _size = 0;
+  }
+}
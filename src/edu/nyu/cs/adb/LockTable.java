@@ -0,0 +1,532 @@
+package edu.nyu.cs.adb;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the lock table of one site, kept in primitive arrays instead
+ * of lists of lock objects. Only variables locked right now take an entry:
+ * like the data store, an open-addressing map from variable index leads to a
+ * slot, and the slot is given back when its last lock is released. For each
+ * slot it keeps the transaction holding the write lock, the number of
+ * transactions holding read locks and the first few of them inline; more
+ * readers go to an overflow list of the slot. A write lock is exclusive, so a
+ * variable has either one writer or readers. Checking for a writer, for a
+ * conflict with a write lock request, and escalating a lock are then a few
+ * field reads, and a locked variable costs no objects unless it has many
+ * readers.
+ *
+ * The value the writer has written but not committed is staged in the slot
+ * of the variable too, with what its last write changed, so that the write
+ * can be undone if it is blocked at another site. Taking the write lock and
+ * writing is then one call which allocates nothing once the slot exists.
+ *
+ * The table is split into segments by variable index, each one with its own
+ * map and slots guarded by its monitor, since locks on different variables
+ * may be taken at the same time. As with the rest of the site, the entry of
+ * one variable is only touched by one thread at a time.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class LockTable {
+
+  // no transaction holds the write lock
+  private static final int NONE = -1;
+
+  // readers of a variable kept inline
+  private static final int INLINE = 4;
+
+  // number of segments, a power of two
+  private static final int SEGMENTS = 16;
+
+  // flags of a slot: the writer has staged a value; its last write can be
+  // undone, had staged a value before, and found a read or write lock held
+  private static final byte STAGED = 1;
+  private static final byte UNDOABLE = 2;
+  private static final byte UNDO_STAGED = 4;
+  private static final byte HELD_READ = 8;
+  private static final byte HELD_WRITE = 16;
+
+  /* Locks of the variables of one segment */
+  private static class Segment {
+    // open-addressing table from variable index to slot, 0 means empty
+    private int[] _keys = new int[16];
+    private int[] _slotOfKey = new int[16];
+
+    // locks of each locked variable, indexed by slot
+    private int _nSlots = 0;
+    private int[] _slotVars = new int[8];
+    private int[] _writer = new int[8];
+    private int[] _readerCount = new int[8];
+    private int[] _readers = new int[8 * INLINE];
+    private IntList[] _overflow = new IntList[8];
+
+    // staged write of the writer and undo record of its last write, indexed
+    // by slot
+    private byte[] _flags = new byte[8];
+    private int[] _values = new int[8];
+    private int[] _versions = new int[8];
+    private int[] _undoValues = new int[8];
+  }
+
+  private Segment[] _segments = new Segment[SEGMENTS];
+
+  public LockTable() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      _segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Get the type of the lock given transaction holds on given variable.
+   *
+   * @param tid
+   * @param varIndex
+   * @return lock type, or null if the transaction holds no lock
+   */
+  public Lock.Type getLockType(int tid, int varIndex) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1) {
+        return null;
+      }
+      if (s._writer[slot] == tid) {
+        return Lock.Type.WRITE;
+      }
+      return indexOfReader(s, slot, tid) >= 0 ? Lock.Type.READ : null;
+    }
+  }
+
+  /**
+   * Check whether given transaction would conflict with other transactions
+   * holding locks on given variable if it asked for a lock of given type, and
+   * append the conflicting transactions to given buffer unless it is null.
+   *
+   * @param tid
+   * @param varIndex
+   * @param type
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return true if there is conflict
+   */
+  public boolean hasConflict(int tid, int varIndex, Lock.Type type,
+      IntList conflicts) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1) {
+        return false;
+      }
+      int writer = s._writer[slot];
+      if (writer != NONE) {
+        // the only conflict with read is some other transaction has a write
+        // lock
+        if (writer == tid) {
+          return false;
+        }
+        if (conflicts != null) {
+          conflicts.add(writer);
+        }
+        return true;
+      }
+      int count = s._readerCount[slot];
+      // as long as other transaction holds a lock, it will conflict with write
+      if (type == Lock.Type.READ || count == 0
+          || (count == 1 && reader(s, slot, 0) == tid)) {
+        return false;
+      }
+      if (conflicts != null) {
+        for (int i = 0; i < count; i++) {
+          int reader = reader(s, slot, i);
+          if (reader != tid) {
+            conflicts.add(reader);
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Give given transaction a lock of given type on given variable. A read
+   * lock it holds is escalated by asking for a write lock. The caller checks
+   * for conflicts first.
+   *
+   * @param tid
+   * @param varIndex
+   * @param type
+   */
+  public void lock(int tid, int varIndex, Lock.Type type) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1) {
+        slot = addSlot(s, varIndex);
+      }
+      if (s._writer[slot] == tid) {
+        return;
+      }
+      int i = indexOfReader(s, slot, tid);
+      if (type == Lock.Type.WRITE) {
+        if (i >= 0) {
+          removeReader(s, slot, i);
+        }
+        s._writer[slot] = tid;
+      } else if (i < 0) {
+        addReader(s, slot, tid);
+      }
+    }
+  }
+
+  /**
+   * Release the lock given transaction holds on given variable.
+   *
+   * @param tid
+   * @param varIndex
+   * @return true if it was a write lock
+   */
+  public boolean release(int tid, int varIndex) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1) {
+        return false;
+      }
+      boolean write = false;
+      if (s._writer[slot] == tid) {
+        s._writer[slot] = NONE;
+        s._flags[slot] = 0;
+        write = true;
+      } else {
+        int i = indexOfReader(s, slot, tid);
+        if (i >= 0) {
+          removeReader(s, slot, i);
+        }
+      }
+      if (s._writer[slot] == NONE && s._readerCount[slot] == 0) {
+        removeSlot(s, varIndex, slot);
+      }
+      return write;
+    }
+  }
+
+  /**
+   * Give given transaction the write lock on given variable, escalating a
+   * read lock it holds, and stage given value as its write. A value staged
+   * before keeps its version. What the write changed is kept until the next
+   * write of the variable, or until the lock is released. The caller checks
+   * for conflicts first.
+   *
+   * @param tid
+   * @param varIndex
+   * @param value
+   * @param version
+   *          version number of the value, if none was staged before
+   * @return lock the transaction held on the variable before
+   */
+  public Lock.Type write(int tid, int varIndex, int value, int version) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1) {
+        slot = addSlot(s, varIndex);
+      }
+      Lock.Type held = null;
+      byte flags = UNDOABLE;
+      if (s._writer[slot] == tid) {
+        held = Lock.Type.WRITE;
+        flags |= HELD_WRITE;
+      } else {
+        int i = indexOfReader(s, slot, tid);
+        if (i >= 0) {
+          held = Lock.Type.READ;
+          flags |= HELD_READ;
+          removeReader(s, slot, i);
+        }
+        s._writer[slot] = tid;
+      }
+      if ((s._flags[slot] & STAGED) != 0) {
+        flags |= UNDO_STAGED;
+        s._undoValues[slot] = s._values[slot];
+      } else {
+        s._versions[slot] = version;
+      }
+      s._flags[slot] = (byte) (flags | STAGED);
+      s._values[slot] = value;
+      return held;
+    }
+  }
+
+  /**
+   * Get the value given transaction has staged for given variable.
+   *
+   * @param tid
+   * @param varIndex
+   * @return data, or null if the transaction does not hold the write lock or
+   *         has not written the variable since it got the lock
+   */
+  public Data getStaged(int tid, int varIndex) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1 || s._writer[slot] != tid
+          || (s._flags[slot] & STAGED) == 0) {
+        return null;
+      }
+      Data d = new Data(varIndex, s._values[slot]);
+      d.setVersion(s._versions[slot]);
+      return d;
+    }
+  }
+
+  /**
+   * Undo the last write of given variable by given transaction, if it holds
+   * the write lock: restore the value it had staged before, if any, and give
+   * back the write lock if the write took it, releasing it or turning it back
+   * into the read lock the transaction held before.
+   *
+   * @param tid
+   * @param varIndex
+   * @return true if the write lock was given back
+   */
+  public boolean undoWrite(int tid, int varIndex) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      if (slot == -1 || s._writer[slot] != tid
+          || (s._flags[slot] & UNDOABLE) == 0) {
+        return false;
+      }
+      byte flags = s._flags[slot];
+      if ((flags & UNDO_STAGED) != 0) {
+        s._values[slot] = s._undoValues[slot];
+        s._flags[slot] = STAGED;
+      } else {
+        s._flags[slot] = 0;
+      }
+      if ((flags & HELD_WRITE) != 0) {
+        // held before, e.g. granted from the wait queue
+        return false;
+      }
+      s._writer[slot] = NONE;
+      s._flags[slot] = 0;
+      if ((flags & HELD_READ) != 0) {
+        addReader(s, slot, tid);
+      } else {
+        removeSlot(s, varIndex, slot);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Check whether some transaction holds the write lock on given variable.
+   *
+   * @param varIndex
+   * @return true if the variable is write locked
+   */
+  public boolean hasWriter(int varIndex) {
+    Segment s = segment(varIndex);
+    synchronized (s) {
+      int slot = findSlot(s, varIndex);
+      return slot != -1 && s._writer[slot] != NONE;
+    }
+  }
+
+  /**
+   * Append the indexes of the variables some transaction holds the write lock
+   * on to given list.
+   *
+   * @param result
+   */
+  public void getWriteLocked(List<Integer> result) {
+    for (Segment s : _segments) {
+      synchronized (s) {
+        for (int slot = 0; slot < s._nSlots; slot++) {
+          if (s._writer[slot] != NONE) {
+            result.add(s._slotVars[slot]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Release all the locks.
+   */
+  public void clear() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      _segments[i] = new Segment();
+    }
+  }
+
+  private Segment segment(int varIndex) {
+    return _segments[varIndex & (SEGMENTS - 1)];
+  }
+
+  private int reader(Segment s, int slot, int i) {
+    if (i < INLINE) {
+      return s._readers[slot * INLINE + i];
+    }
+    return s._overflow[slot].get(i - INLINE);
+  }
+
+  private int indexOfReader(Segment s, int slot, int tid) {
+    int count = s._readerCount[slot];
+    for (int i = 0; i < count; i++) {
+      if (reader(s, slot, i) == tid) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void addReader(Segment s, int slot, int tid) {
+    int count = s._readerCount[slot];
+    if (count < INLINE) {
+      s._readers[slot * INLINE + count] = tid;
+    } else {
+      if (s._overflow[slot] == null) {
+        s._overflow[slot] = new IntList();
+      }
+      s._overflow[slot].add(tid);
+    }
+    s._readerCount[slot] = count + 1;
+  }
+
+  /* Remove the reader at given position, moving the last reader there */
+  private void removeReader(Segment s, int slot, int i) {
+    int last = s._readerCount[slot] - 1;
+    int lastReader = reader(s, slot, last);
+    if (last >= INLINE) {
+      IntList overflow = s._overflow[slot];
+      overflow.removeLast();
+      if (overflow.isEmpty()) {
+        s._overflow[slot] = null;
+      }
+    }
+    if (i < last) {
+      if (i < INLINE) {
+        s._readers[slot * INLINE + i] = lastReader;
+      } else {
+        s._overflow[slot].set(i - INLINE, lastReader);
+      }
+    }
+    s._readerCount[slot] = last;
+  }
+
+  /* Return slot of given variable, or -1 if it is not locked */
+  private int findSlot(Segment s, int varIndex) {
+    int mask = s._keys.length - 1;
+    int pos = hash(varIndex) & mask;
+    while (s._keys[pos] != 0) {
+      if (s._keys[pos] == varIndex) {
+        return s._slotOfKey[pos];
+      }
+      pos = (pos + 1) & mask;
+    }
+    return -1;
+  }
+
+  /* Allocate a slot without locks for given variable */
+  private int addSlot(Segment s, int varIndex) {
+    if (s._nSlots == s._slotVars.length) {
+      int size = s._nSlots * 2;
+      s._slotVars = Arrays.copyOf(s._slotVars, size);
+      s._writer = Arrays.copyOf(s._writer, size);
+      s._readerCount = Arrays.copyOf(s._readerCount, size);
+      s._readers = Arrays.copyOf(s._readers, size * INLINE);
+      s._overflow = Arrays.copyOf(s._overflow, size);
+      s._flags = Arrays.copyOf(s._flags, size);
+      s._values = Arrays.copyOf(s._values, size);
+      s._versions = Arrays.copyOf(s._versions, size);
+      s._undoValues = Arrays.copyOf(s._undoValues, size);
+    }
+    int slot = s._nSlots++;
+    s._slotVars[slot] = varIndex;
+    s._writer[slot] = NONE;
+    s._readerCount[slot] = 0;
+    s._flags[slot] = 0;
+    // keep the table at most half full
+    if (s._nSlots * 2 > s._keys.length) {
+      s._keys = new int[s._keys.length * 2];
+      s._slotOfKey = new int[s._keys.length];
+      for (int i = 0; i < s._nSlots; i++) {
+        insertKey(s, s._slotVars[i], i);
+      }
+    } else {
+      insertKey(s, varIndex, slot);
+    }
+    return slot;
+  }
+
+  /*
+   * Give back the slot of given variable, which holds no lock, by moving the
+   * last slot there, and delete its key by shifting back the keys after it.
+   */
+  private void removeSlot(Segment s, int varIndex, int slot) {
+    int last = --s._nSlots;
+    if (slot < last) {
+      int moved = s._slotVars[last];
+      s._slotVars[slot] = moved;
+      s._writer[slot] = s._writer[last];
+      s._readerCount[slot] = s._readerCount[last];
+      System.arraycopy(s._readers, last * INLINE, s._readers, slot * INLINE,
+          INLINE);
+      s._overflow[slot] = s._overflow[last];
+      s._flags[slot] = s._flags[last];
+      s._values[slot] = s._values[last];
+      s._versions[slot] = s._versions[last];
+      s._undoValues[slot] = s._undoValues[last];
+      s._slotOfKey[findKey(s, moved)] = slot;
+    }
+    s._overflow[last] = null;
+    int mask = s._keys.length - 1;
+    int hole = findKey(s, varIndex);
+    int pos = hole;
+    while (true) {
+      pos = (pos + 1) & mask;
+      int key = s._keys[pos];
+      if (key == 0) {
+        break;
+      }
+      // move the key into the hole unless its home lies between the hole and
+      // its position
+      int home = hash(key) & mask;
+      if (((pos - home) & mask) >= ((pos - hole) & mask)) {
+        s._keys[hole] = key;
+        s._slotOfKey[hole] = s._slotOfKey[pos];
+        hole = pos;
+      }
+    }
+    s._keys[hole] = 0;
+  }
+
+  /* Return the position of given variable in the table, which must be there */
+  private int findKey(Segment s, int varIndex) {
+    int mask = s._keys.length - 1;
+    int pos = hash(varIndex) & mask;
+    while (s._keys[pos] != varIndex) {
+      pos = (pos + 1) & mask;
+    }
+    return pos;
+  }
+
+  private void insertKey(Segment s, int varIndex, int slot) {
+    int mask = s._keys.length - 1;
+    int pos = hash(varIndex) & mask;
+    while (s._keys[pos] != 0) {
+      pos = (pos + 1) & mask;
+    }
+    s._keys[pos] = varIndex;
+    s._slotOfKey[pos] = slot;
+  }
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
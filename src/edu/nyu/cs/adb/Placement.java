@@ -0,0 +1,65 @@
+package edu.nyu.cs.adb;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Placement decides which sites store each variable. The transaction manager
+ * routes operations with it, and each site uses it to know which variables it
+ * stores.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+interface Placement {
+
+  /**
+   * Get the sites storing given variable.
+   *
+   * @param varIndex
+   * @return site indexes in increasing order, or null if there is no such
+   *         variable
+   */
+  List<Integer> getSites(int varIndex);
+
+  /**
+   * Check whether given variable is stored at given site.
+   *
+   * @param varIndex
+   * @param siteIndex
+   * @return true if stored
+   */
+  boolean isStoredAt(int varIndex, int siteIndex);
+
+  /**
+   * Check whether given variable is stored at more than one site. Replicated
+   * variables become unavailable when their site recovers.
+   *
+   * @param varIndex
+   * @return true if replicated
+   */
+  boolean isReplicated(int varIndex);
+
+  /**
+   * Check whether every replicated variable is stored at all sites.
+   *
+   * @return true if replicated variables are at all sites
+   */
+  boolean isFullyReplicated();
+
+  /**
+   * Get the numbers of sites storing a variable, over all the variables.
+   *
+   * @return replication factors
+   */
+  Set<Integer> getReplicationFactors();
+
+  /**
+   * Get the number of variables stored at given site.
+   *
+   * @param siteIndex
+   * @return number of variables
+   */
+  long getVariableCount(int siteIndex);
+}
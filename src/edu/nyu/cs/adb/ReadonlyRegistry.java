@@ -0,0 +1,86 @@
+package edu.nyu.cs.adb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps track of the active READ_ONLY transactions, so that whether
+ * any of them is running and the start time of the oldest one can be answered
+ * without scanning all the transactions.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class ReadonlyRegistry {
+
+  // Map<Transaction id, start time> of active READ_ONLY transactions
+  private Map<Integer, Integer> _active = new HashMap<Integer, Integer>();
+
+  // Map<start time, number of active READ_ONLY transactions started then>
+  private TreeMap<Integer, Integer> _startTimes = new TreeMap<Integer, Integer>();
+
+  /**
+   * Register a READ_ONLY transaction when it begins.
+   *
+   * @param t
+   *          transaction
+   */
+  public void begin(Transaction t) {
+    if (t.getType() != Transaction.Type.RO
+        || _active.containsKey(t.getTranId())) {
+      return;
+    }
+    _active.put(t.getTranId(), t.getTimestamp());
+    Integer count = _startTimes.get(t.getTimestamp());
+    _startTimes.put(t.getTimestamp(), count == null ? 1 : count + 1);
+  }
+
+  /**
+   * Unregister a transaction when it commits or aborts. Ignored if it is not
+   * an active READ_ONLY transaction.
+   *
+   * @param tid
+   *          transaction id
+   */
+  public void end(int tid) {
+    Integer time = _active.remove(tid);
+    if (time == null) {
+      return;
+    }
+    int count = _startTimes.get(time);
+    if (count == 1) {
+      _startTimes.remove(time);
+    } else {
+      _startTimes.put(time, count - 1);
+    }
+  }
+
+  /**
+   * Check whether there is any running READ_ONLY transaction.
+   *
+   * @return true if there is running READ_ONLY transaction.
+   */
+  public boolean hasRunning() {
+    return !_active.isEmpty();
+  }
+
+  /**
+   * Get the start time of the oldest running READ_ONLY transaction.
+   *
+   * @return start time, or -1 if there is no running READ_ONLY transaction.
+   */
+  public int getOldestTimestamp() {
+    if (_startTimes.isEmpty()) {
+      return -1;
+    }
+    return _startTimes.firstKey();
+  }
+
+  /** Remove all the READ_ONLY transactions. */
+  public void clear() {
+    _active.clear();
+    _startTimes.clear();
+  }
+}
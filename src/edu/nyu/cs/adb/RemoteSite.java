@@ -0,0 +1,450 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stub of a site served by a {@link SiteServer} in another process. Every
+ * call is sent as a request over one connection to the server, shared by all
+ * the threads of the transaction manager: requests are tagged with an id, so
+ * several threads may have requests in flight at once, and a reader thread
+ * hands each reply to the thread waiting for it. Locks granted by the server
+ * while executing a request come back before its reply, and are passed to
+ * the transaction manager on the calling thread, as with a local site.
+ *
+ * The status of the site is kept here, since it only changes by fail and
+ * recover sent from this stub. If the connection is lost, or the server does
+ * not reply in time, the site is down for good: calls in flight and later
+ * calls get the empty reply of a site that is down, so that the transaction
+ * manager aborts the transactions that have touched it.
+ *
+ * Catch up and hash tree comparison need the state of two sites at once, so
+ * they are not offered by remote sites. The log and checkpoints are kept by
+ * the server.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class RemoteSite implements Site {
+
+  /* Reply to a request, with the locks granted before it */
+  private static class Reply {
+    private byte _code;
+    private ByteBuffer _body;
+    private List<int[]> _grants;
+  }
+
+  // seconds to wait for a reply before giving up the connection
+  private static final long REPLY_TIMEOUT = 30;
+
+  // body of the reply to any call once the connection is lost: reads as
+  // false, 0, no data and empty lists
+  private static final ByteBuffer DOWN_REPLY = ByteBuffer.allocate(16);
+
+  private int _siteIndex;
+  private TransactionManager _tm;
+  private SocketChannel _channel;
+
+  private volatile boolean _up = true;
+  private volatile boolean _closed = false;
+
+  private AtomicInteger _nextId = new AtomicInteger(1);
+
+  // Map<request id, reply of a request in flight>
+  private Map<Integer, CompletableFuture<Reply>> _pending = new ConcurrentHashMap<Integer, CompletableFuture<Reply>>();
+
+  // locks granted since the last reply, only used by the reader thread
+  private List<int[]> _grants = new ArrayList<int[]>();
+
+  public RemoteSite(int index, TransactionManager tm, InetSocketAddress address) {
+    _siteIndex = index;
+    _tm = tm;
+    try {
+      _channel = SocketChannel.open(address);
+      _channel.socket().setTcpNoDelay(true);
+    } catch (IOException e) {
+      System.err.println("Cannot connect to Site" + index + " at " + address
+          + ": " + e.getMessage());
+      _closed = true;
+      return;
+    }
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readReplies();
+      }
+    }, "site-" + index + "-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @Override
+  public void init(int nVariables, Placement placement) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.INIT);
+    request.putInt(nVariables);
+    call(request);
+    _up = call(request(SiteProtocol.STATUS)).get() != 0;
+  }
+
+  @Override
+  public void openLog(File dir, boolean groupCommit, int checkpointInterval) {
+    // the server opens its own log
+  }
+
+  @Override
+  public void flushLog() {
+    call(request(SiteProtocol.FLUSH_LOG));
+  }
+
+  @Override
+  public void closeLog() {
+    call(request(SiteProtocol.CLOSE_LOG));
+  }
+
+  @Override
+  public int getIndex() {
+    return _siteIndex;
+  }
+
+  @Override
+  public boolean getStatus() {
+    return _up && !_closed;
+  }
+
+  @Override
+  public void enqueueLock(int tid, int varIndex, Lock.Type type) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.ENQUEUE_LOCK);
+    request.putInt(tid);
+    request.putInt(varIndex);
+    request.putBoolean(type == Lock.Type.WRITE);
+    call(request);
+  }
+
+  @Override
+  public void recover(boolean replicatedUnavailable) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.RECOVER);
+    request.putBoolean(replicatedUnavailable);
+    call(request);
+    _up = true;
+  }
+
+  @Override
+  public void fail() {
+    call(request(SiteProtocol.FAIL));
+    _up = false;
+  }
+
+  @Override
+  public boolean hasSnapshotVersion(Transaction t, int varIndex) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.HAS_SNAPSHOT);
+    request.putTransaction(t);
+    request.putInt(varIndex);
+    return call(request).get() != 0;
+  }
+
+  @Override
+  public int getVersion(int varIndex) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.VERSION);
+    request.putInt(varIndex);
+    return call(request).getInt();
+  }
+
+  @Override
+  public int getOutstandingRequests() {
+    return call(request(SiteProtocol.OUTSTANDING)).getInt();
+  }
+
+  @Override
+  public Map<Integer, Data> getDataMap() {
+    ByteBuffer reply = call(request(SiteProtocol.DATA_MAP));
+    int size = reply.getInt();
+    Map<Integer, Data> result = new HashMap<Integer, Data>();
+    for (int i = 0; i < size; i++) {
+      Data d = SiteProtocol.getData(reply);
+      result.put(d.getIndex(), d);
+    }
+    return result;
+  }
+
+  @Override
+  public List<Integer> getAccessedTransaction() {
+    ByteBuffer reply = call(request(SiteProtocol.ACCESSED));
+    int size = reply.getInt();
+    List<Integer> result = new ArrayList<Integer>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(reply.getInt());
+    }
+    return result;
+  }
+
+  @Override
+  public Data dump(int varIndex) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.DUMP);
+    request.putInt(varIndex);
+    return SiteProtocol.getData(call(request));
+  }
+
+  @Override
+  public void sweepVersions() {
+    call(request(SiteProtocol.SWEEP));
+  }
+
+  @Override
+  public long getVersionsRetained() {
+    return call(request(SiteProtocol.RETAINED)).getLong();
+  }
+
+  @Override
+  public long getVersionsReclaimed() {
+    return call(request(SiteProtocol.RECLAIMED)).getLong();
+  }
+
+  @Override
+  public boolean prepare(int tid) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.PREPARE);
+    request.putInt(tid);
+    return call(request).get() != 0;
+  }
+
+  @Override
+  public void commit(int tid) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.COMMIT);
+    request.putInt(tid);
+    call(request);
+  }
+
+  @Override
+  public int getInDoubtTransaction() {
+    return call(request(SiteProtocol.IN_DOUBT)).getInt();
+  }
+
+  @Override
+  public void resolve(int tid, int commitTime) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.RESOLVE);
+    request.putInt(tid);
+    request.putInt(commitTime);
+    call(request);
+  }
+
+  @Override
+  public void abort(int tid) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.ABORT);
+    request.putInt(tid);
+    call(request);
+  }
+
+  @Override
+  public Data read(Transaction t, int varIndex, IntList conflicts) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.READ);
+    request.putTransaction(t);
+    request.putInt(varIndex);
+    ByteBuffer reply = call(request);
+    Data d = SiteProtocol.getData(reply);
+    SiteProtocol.getIntList(reply, conflicts != null ? conflicts
+        : new IntList());
+    return d;
+  }
+
+  @Override
+  public boolean write(Transaction t, int varIndex, int value, int version,
+      IntList conflicts) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.WRITE);
+    request.putTransaction(t);
+    request.putInt(varIndex);
+    request.putInt(value);
+    request.putInt(version);
+    ByteBuffer reply = call(request);
+    boolean written = reply.get() != 0;
+    SiteProtocol.getIntList(reply, conflicts != null ? conflicts
+        : new IntList());
+    return written;
+  }
+
+  @Override
+  public void undoWrite(int tid, int varIndex) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.UNDO_WRITE);
+    request.putInt(tid);
+    request.putInt(varIndex);
+    call(request);
+  }
+
+  @Override
+  public boolean isWritable(int tid, int varIndex, IntList conflicts) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.IS_WRITABLE);
+    request.putInt(tid);
+    request.putInt(varIndex);
+    ByteBuffer reply = call(request);
+    boolean writable = reply.get() != 0;
+    SiteProtocol.getIntList(reply, conflicts != null ? conflicts
+        : new IntList());
+    return writable;
+  }
+
+  @Override
+  public boolean getConflictTrans(int tid, int varIndex, IntList conflicts) {
+    SiteProtocol.FrameWriter request = request(SiteProtocol.CONFLICTS);
+    request.putInt(tid);
+    request.putInt(varIndex);
+    ByteBuffer reply = call(request);
+    boolean stored = reply.get() != 0;
+    SiteProtocol.getIntList(reply, conflicts);
+    return stored;
+  }
+
+  /**
+   * Check whether the connection to the server is lost.
+   *
+   * @return true if the site is down for good
+   */
+  public boolean isLost() {
+    return _closed;
+  }
+
+  /**
+   * Close the connection to the server.
+   */
+  public void close() {
+    _closed = true;
+    if (_channel == null) {
+      return;
+    }
+    try {
+      _channel.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /* Start a request, with the time and oldest read-only start time */
+  private SiteProtocol.FrameWriter request(byte code) {
+    SiteProtocol.FrameWriter request = new SiteProtocol.FrameWriter(
+        _nextId.getAndIncrement(), code);
+    request.putInt(_tm.getCurrentTime());
+    request.putInt(_tm.getOldestReadonlyTimestamp());
+    return request;
+  }
+
+  /*
+   * Send a request and wait for its reply. Pass the locks granted by the
+   * request to the transaction manager, and return the body of the reply, or
+   * the reply of a site that is down if the connection is lost.
+   */
+  private ByteBuffer call(SiteProtocol.FrameWriter request) {
+    ByteBuffer frame = request.toBuffer();
+    int id = frame.getInt(4);
+    CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+    _pending.put(id, future);
+    // checked after adding the request, since the reader thread marks the
+    // connection closed before failing the pending requests
+    if (_closed) {
+      _pending.remove(id);
+      return DOWN_REPLY.duplicate();
+    }
+    Reply reply;
+    try {
+      synchronized (_channel) {
+        while (frame.hasRemaining()) {
+          _channel.write(frame);
+        }
+      }
+      reply = future.get(REPLY_TIMEOUT, TimeUnit.SECONDS);
+    } catch (IOException e) {
+      _pending.remove(id);
+      lost(e.getMessage());
+      return DOWN_REPLY.duplicate();
+    } catch (TimeoutException e) {
+      _pending.remove(id);
+      lost("no reply in " + REPLY_TIMEOUT + " seconds");
+      return DOWN_REPLY.duplicate();
+    } catch (InterruptedException e) {
+      _pending.remove(id);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      return DOWN_REPLY.duplicate();
+    }
+    for (int[] grant : reply._grants) {
+      _tm.lockGranted(grant[0], grant[1], _siteIndex);
+    }
+    if (reply._code == SiteProtocol.ERROR) {
+      throw new IllegalStateException("Site" + _siteIndex + ": "
+          + SiteProtocol.getString(reply._body));
+    }
+    return reply._body;
+  }
+
+  /* Loop of the reader thread, until the connection is closed */
+  private void readReplies() {
+    ByteBuffer header = ByteBuffer.allocate(4);
+    try {
+      while (true) {
+        header.clear();
+        readFully(header);
+        ByteBuffer frame = ByteBuffer.allocate(header.getInt(0));
+        readFully(frame);
+        frame.flip();
+        int id = frame.getInt();
+        byte code = frame.get();
+        if (code == SiteProtocol.LOCK_GRANTED) {
+          _grants.add(new int[] { frame.getInt(), frame.getInt() });
+          continue;
+        }
+        Reply reply = new Reply();
+        reply._code = code;
+        reply._body = frame.slice();
+        reply._grants = _grants;
+        _grants = new ArrayList<int[]>();
+        CompletableFuture<Reply> future = _pending.remove(id);
+        if (future != null) {
+          future.complete(reply);
+        }
+      }
+    } catch (IOException e) {
+      if (!_closed) {
+        lost(e.getMessage());
+      }
+      for (CompletableFuture<Reply> future : _pending.values()) {
+        future.completeExceptionally(e);
+      }
+      _pending.clear();
+    }
+  }
+
+  /* Give up the connection, so that the site stays down */
+  private void lost(String reason) {
+    synchronized (this) {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+    }
+    System.err.println("Lost connection to Site" + _siteIndex + ": " + reason);
+    try {
+      _channel.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (_channel.read(buffer) == -1) {
+        throw new IOException("Connection to Site" + _siteIndex + " closed");
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class decides in which order the transaction manager tries the sites
+ * storing a variable when reading it. The default policy tries them in site
+ * order, the others spread reads over the replicas:
+ * <ul>
+ * <li>ordered: site order, so site 1 serves all reads of replicated
+ * variables while it is up.</li>
+ * <li>roundrobin: each read starts from the site after the one the previous
+ * read started from.</li>
+ * <li>leastoutstanding: sites with fewer transactions holding or waiting for
+ * locks first.</li>
+ * <li>affinity: sites the transaction has already touched first, then
+ * starting from a site chosen by transaction id, so a transaction keeps
+ * reading from the same replica.</li>
+ * </ul>
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+abstract class ReplicaSelector {
+
+  /**
+   * Create the selector of given policy name.
+   *
+   * @param name
+   *          ordered, roundrobin, leastoutstanding or affinity
+   * @param databaseManagers
+   *          all the sites
+   * @param participants
+   *          Map<Transaction id, Set of site indexes the transaction has
+   *          touched>
+   * @return selector
+   */
+  public static ReplicaSelector create(String name,
+      List<Site> databaseManagers,
+      Map<Integer, Set<Integer>> participants) {
+    if (name.equals("ordered")) {
+      return new Ordered();
+    } else if (name.equals("roundrobin")) {
+      return new RoundRobin();
+    } else if (name.equals("leastoutstanding")) {
+      return new LeastOutstanding(databaseManagers);
+    } else if (name.equals("affinity")) {
+      return new Affinity(participants);
+    }
+    throw new IllegalArgumentException("Unknown replica selection: " + name);
+  }
+
+  /**
+   * Order the sites storing a variable for a read of given transaction.
+   *
+   * @param tid
+   *          transaction id
+   * @param sites
+   *          indexes of the sites storing the variable, in site order
+   * @return site indexes in the order they should be tried
+   */
+  public abstract List<Integer> order(int tid, List<Integer> sites);
+
+  /* Return the sites starting from given position, wrapping around */
+  static List<Integer> rotate(List<Integer> sites, int start) {
+    if (sites.size() < 2 || start % sites.size() == 0) {
+      return sites;
+    }
+    List<Integer> result = new ArrayList<Integer>(sites.size());
+    for (int i = 0; i < sites.size(); i++) {
+      result.add(sites.get((start + i) % sites.size()));
+    }
+    return result;
+  }
+
+  static class Ordered extends ReplicaSelector {
+    @Override
+    public List<Integer> order(int tid, List<Integer> sites) {
+      return sites;
+    }
+  }
+
+  static class RoundRobin extends ReplicaSelector {
+    private AtomicInteger _next = new AtomicInteger();
+
+    @Override
+    public List<Integer> order(int tid, List<Integer> sites) {
+      return rotate(sites, _next.getAndIncrement() & Integer.MAX_VALUE);
+    }
+  }
+
+  static class LeastOutstanding extends ReplicaSelector {
+    private List<Site> _databaseManagers;
+
+    public LeastOutstanding(List<Site> databaseManagers) {
+      _databaseManagers = databaseManagers;
+    }
+
+    @Override
+    public List<Integer> order(int tid, List<Integer> sites) {
+      if (sites.size() < 2) {
+        return sites;
+      }
+      final int[] load = new int[_databaseManagers.size() + 1];
+      for (Integer siteIndex : sites) {
+        load[siteIndex] = _databaseManagers.get(siteIndex - 1)
+            .getOutstandingRequests();
+      }
+      List<Integer> result = new ArrayList<Integer>(sites);
+      // stable, so equally loaded sites stay in site order
+      Collections.sort(result, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Integer.compare(load[a], load[b]);
+        }
+      });
+      return result;
+    }
+  }
+
+  static class Affinity extends ReplicaSelector {
+    private Map<Integer, Set<Integer>> _participants;
+
+    public Affinity(Map<Integer, Set<Integer>> participants) {
+      _participants = participants;
+    }
+
+    @Override
+    public List<Integer> order(int tid, List<Integer> sites) {
+      List<Integer> rotated = rotate(sites, tid & Integer.MAX_VALUE);
+      Set<Integer> touched = _participants.get(tid);
+      if (touched == null || touched.isEmpty()) {
+        return rotated;
+      }
+      List<Integer> result = new ArrayList<Integer>(sites.size());
+      for (Integer siteIndex : rotated) {
+        if (touched.contains(siteIndex)) {
+          result.add(siteIndex);
+        }
+      }
+      for (Integer siteIndex : rotated) {
+        if (!touched.contains(siteIndex)) {
+          result.add(siteIndex);
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the operation log of each running READ_WRITE transaction,
+ * so that an aborted transaction can be restarted and its operations replayed
+ * instead of being lost. A transaction restarts with its original timestamp,
+ * so it gets older compared with the transactions started after it and
+ * cannot be aborted by wait-die forever. The n-th restart of a transaction
+ * waits backoff * 2^(n-1) ticks, and a transaction is left aborted after the
+ * given number of restarts. Operations and the end of a transaction waiting
+ * to restart or being replayed are appended to its log, and a transaction
+ * only ends once none of its operations is waiting. Methods are
+ * synchronized, since concurrent sessions may add operations at the same
+ * time.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class RestartScheduler {
+
+  private static class Replay {
+    // operations of the transaction, in the order they were issued
+    private List<Operation> _log = new ArrayList<Operation>();
+
+    // index of the next operation to replay
+    private int _next = 0;
+
+    // tick at which the transaction restarts, -1 if it is not waiting to
+    private int _due = -1;
+
+    private boolean _replaying = false;
+    private boolean _ended = false;
+    private int _restarts = 0;
+  }
+
+  private int _limit;
+  private int _backoff;
+
+  // Map<Transaction id, log of that transaction>
+  private Map<Integer, Replay> _replays = new HashMap<Integer, Replay>();
+
+  /**
+   * @param limit
+   *          maximum number of restarts of a transaction
+   * @param backoff
+   *          number of ticks before the first restart
+   */
+  public RestartScheduler(int limit, int backoff) {
+    _limit = limit;
+    _backoff = backoff;
+  }
+
+  /**
+   * Start the log of a READ_WRITE transaction when it begins.
+   *
+   * @param tid
+   *          transaction id
+   */
+  public synchronized void begin(int tid) {
+    if (!_replays.containsKey(tid)) {
+      _replays.put(tid, new Replay());
+    }
+  }
+
+  /**
+   * Append a new operation to the log of its transaction.
+   *
+   * @param oper
+   * @return true if the operation should be executed now, false if its
+   *         transaction is waiting to restart or being replayed, so that the
+   *         operation runs when the replay reaches it
+   */
+  public synchronized boolean record(Operation oper) {
+    Replay replay = _replays.get(oper.getTranId());
+    if (replay == null) {
+      return true;
+    }
+    replay._log.add(oper);
+    return replay._due < 0 && !replay._replaying;
+  }
+
+  /**
+   * Record the end of given transaction if it cannot commit now, because it
+   * has aborted and will restart, is being replayed, or has operations
+   * waiting. The replay commits it once all its operations have run.
+   *
+   * @param tid
+   *          transaction id
+   * @param aborted
+   *          true if the transaction has aborted
+   * @param waiting
+   *          true if some operation of the transaction is waiting
+   * @return true if the end is deferred
+   */
+  public synchronized boolean deferEnd(int tid, boolean aborted,
+      boolean waiting) {
+    Replay replay = _replays.get(tid);
+    if (replay == null) {
+      return false;
+    }
+    if (!aborted && replay._due < 0 && !replay._replaying) {
+      if (!waiting) {
+        return false;
+      }
+      // nothing to replay, only wait for the waiting operations
+      replay._replaying = true;
+      replay._next = replay._log.size();
+    }
+    replay._ended = true;
+    return true;
+  }
+
+  /**
+   * Schedule the restart of given transaction when it aborts.
+   *
+   * @param tid
+   *          transaction id
+   * @param now
+   *          current tick
+   * @return tick at which the transaction restarts, or -1 if it does not
+   *         restart because it has used up its restarts or is not logged.
+   *         A transaction already waiting to restart keeps its tick.
+   */
+  public synchronized int schedule(int tid, int now) {
+    Replay replay = _replays.get(tid);
+    if (replay == null) {
+      return -1;
+    }
+    if (replay._due >= 0) {
+      return replay._due;
+    }
+    if (replay._restarts >= _limit) {
+      _replays.remove(tid);
+      return -1;
+    }
+    replay._restarts++;
+    replay._replaying = false;
+    replay._next = 0;
+    replay._due = now + (_backoff << Math.min(replay._restarts - 1, 16));
+    return replay._due;
+  }
+
+  /**
+   * Return the transactions whose restart is due at given tick, and start
+   * their replay.
+   *
+   * @param now
+   *          current tick
+   * @return transaction ids
+   */
+  public synchronized List<Integer> takeDue(int now) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (Map.Entry<Integer, Replay> e : _replays.entrySet()) {
+      Replay replay = e.getValue();
+      if (replay._due >= 0 && replay._due <= now) {
+        replay._due = -1;
+        replay._replaying = true;
+        result.add(e.getKey());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the transactions being replayed.
+   *
+   * @return transaction ids
+   */
+  public synchronized List<Integer> getReplaying() {
+    List<Integer> result = new ArrayList<Integer>();
+    for (Map.Entry<Integer, Replay> e : _replays.entrySet()) {
+      if (e.getValue()._replaying) {
+        result.add(e.getKey());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the next operation to replay of given transaction, or null if all
+   * of them have run. Then the replay is over, and later operations of the
+   * transaction run as they arrive.
+   *
+   * @param tid
+   *          transaction id
+   * @return operation
+   */
+  public synchronized Operation next(int tid) {
+    Replay replay = _replays.get(tid);
+    if (replay == null || !replay._replaying) {
+      return null;
+    }
+    if (replay._next < replay._log.size()) {
+      return replay._log.get(replay._next++);
+    }
+    replay._replaying = false;
+    return null;
+  }
+
+  /**
+   * Check whether the end of given transaction was deferred.
+   *
+   * @param tid
+   *          transaction id
+   * @return true if the transaction has ended
+   */
+  public synchronized boolean hasEnded(int tid) {
+    Replay replay = _replays.get(tid);
+    return replay != null && replay._ended;
+  }
+
+  /**
+   * Return the number of restarts of given transaction so far.
+   *
+   * @param tid
+   *          transaction id
+   * @return number of restarts
+   */
+  public synchronized int getRestarts(int tid) {
+    Replay replay = _replays.get(tid);
+    return replay == null ? 0 : replay._restarts;
+  }
+
+  /**
+   * Drop the log of given transaction when it commits.
+   *
+   * @param tid
+   *          transaction id
+   */
+  public synchronized void end(int tid) {
+    _replays.remove(tid);
+  }
+
+  /**
+   * Check whether some transaction is waiting to restart.
+   *
+   * @return true if a restart is scheduled
+   */
+  public synchronized boolean hasScheduled() {
+    for (Replay replay : _replays.values()) {
+      if (replay._due >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check whether the restart of some transaction is due at given tick.
+   *
+   * @param now
+   *          current tick
+   * @return true if a restart is due
+   */
+  public synchronized boolean hasDue(int now) {
+    for (Replay replay : _replays.values()) {
+      if (replay._due >= 0 && replay._due <= now) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Drop all the logs. */
+  public synchronized void clear() {
+    _replays.clear();
+  }
+}
@@ -0,0 +1,266 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the transaction manager needs from a site: locking reads and writes,
+ * the two commit phases, fail and recover, its log, and what the dump,
+ * querystate and replica selection report. A database manager implements it
+ * for a site in the same process, and a remote site stub for a site served
+ * by another process.
+ *
+ * Catching up from peers and comparing hash trees need the state of two sites
+ * at once, so they are only offered by database managers in the same process.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+interface Site {
+
+  /**
+   * Create the storage of the variables the placement puts at this site.
+   *
+   * @param nVariables
+   *          number of variables in database
+   * @param placement
+   *          sites storing each variable
+   */
+  void init(int nVariables, Placement placement);
+
+  /**
+   * Open the write-ahead log of this site in given directory, and rebuild the
+   * committed values from it.
+   *
+   * @param dir
+   *          log directory
+   * @param groupCommit
+   *          if true, log is only forced by flushLog, otherwise at each commit
+   * @param checkpointInterval
+   *          number of commits between checkpoints, 0 to disable checkpoints
+   */
+  void openLog(File dir, boolean groupCommit, int checkpointInterval);
+
+  /**
+   * Get the transaction whose prepared writes were found in the log without a
+   * commit or abort record, and are still in doubt.
+   *
+   * @return transaction id, or 0 if none
+   */
+  int getInDoubtTransaction();
+
+  /**
+   * Resolve the transaction in doubt with the outcome the transaction manager
+   * decided.
+   *
+   * @param tid
+   *          transaction id
+   * @param commitTime
+   *          commit time, or -1 if the transaction aborted
+   */
+  void resolve(int tid, int commitTime);
+
+  /**
+   * Force the logged commits to disk.
+   */
+  void flushLog();
+
+  /**
+   * Flush and close the write-ahead log.
+   */
+  void closeLog();
+
+  /**
+   * Get the index of this site.
+   *
+   * @return site index
+   */
+  int getIndex();
+
+  /**
+   * Check whether this site is up.
+   *
+   * @return true if up
+   */
+  boolean getStatus();
+
+  /**
+   * Let the site fail: locks and staged writes are lost.
+   */
+  void fail();
+
+  /**
+   * Let the site recover.
+   *
+   * @param replicatedUnavailable
+   *          if true, replicated variables are unavailable until written
+   */
+  void recover(boolean replicatedUnavailable);
+
+  /**
+   * Read given variable for given transaction.
+   *
+   * @param t
+   *          transaction
+   * @param varIndex
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return data read, or null if it cannot be read
+   */
+  Data read(Transaction t, int varIndex, IntList conflicts);
+
+  /**
+   * Lock given variable for given transaction and stage the value written.
+   *
+   * @param t
+   *          transaction
+   * @param varIndex
+   * @param value
+   * @param version
+   *          version number of the value, or -1 for the version after the
+   *          last committed one at this site
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return true if written, false if there is conflict
+   */
+  boolean write(Transaction t, int varIndex, int value, int version,
+      IntList conflicts);
+
+  /**
+   * Drop the write of given variable staged by given transaction.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   */
+  void undoWrite(int tid, int varIndex);
+
+  /**
+   * Check whether given transaction can write given variable here.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   * @param conflicts
+   *          buffer of conflicting transaction ids, or null
+   * @return true if writable
+   */
+  boolean isWritable(int tid, int varIndex, IntList conflicts);
+
+  /**
+   * Find the transactions conflicting with a write of given variable by
+   * given transaction.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   * @param conflicts
+   *          buffer of conflicting transaction ids
+   * @return true if the variable is stored here
+   */
+  boolean getConflictTrans(int tid, int varIndex, IntList conflicts);
+
+  /**
+   * Queue a lock request, granted once the conflicting locks are released.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   * @param type
+   */
+  void enqueueLock(int tid, int varIndex, Lock.Type type);
+
+  /**
+   * Prepare given transaction, the first commit phase.
+   *
+   * @param tid
+   *          transaction id
+   * @return true if this site votes to commit
+   */
+  boolean prepare(int tid);
+
+  /**
+   * Commit given transaction and release its locks.
+   *
+   * @param tid
+   *          transaction id
+   */
+  void commit(int tid);
+
+  /**
+   * Abort given transaction and release its locks.
+   *
+   * @param tid
+   *          transaction id
+   */
+  void abort(int tid);
+
+  /**
+   * Get the transactions which have accessed this site.
+   *
+   * @return transaction ids
+   */
+  List<Integer> getAccessedTransaction();
+
+  /**
+   * Check whether this site has a version of given variable readable by
+   * given read-only transaction.
+   *
+   * @param t
+   *          read-only transaction
+   * @param varIndex
+   * @return true if readable
+   */
+  boolean hasSnapshotVersion(Transaction t, int varIndex);
+
+  /**
+   * Get the version number of the last committed version of given variable.
+   *
+   * @param varIndex
+   * @return version number
+   */
+  int getVersion(int varIndex);
+
+  /**
+   * Get the number of lock requests queued at this site.
+   *
+   * @return number of requests
+   */
+  int getOutstandingRequests();
+
+  /**
+   * Get the last committed version of the variables stored here.
+   *
+   * @return Map<Variable index, data>
+   */
+  Map<Integer, Data> getDataMap();
+
+  /**
+   * Get the last committed version of given variable.
+   *
+   * @param varIndex
+   * @return data
+   */
+  Data dump(int varIndex);
+
+  /**
+   * Drop the old versions no running read-only transaction can read.
+   */
+  void sweepVersions();
+
+  /**
+   * Get the number of committed versions kept.
+   *
+   * @return number of versions
+   */
+  long getVersionsRetained();
+
+  /**
+   * Get the number of old versions reclaimed so far.
+   *
+   * @return number of versions
+   */
+  long getVersionsReclaimed();
+}
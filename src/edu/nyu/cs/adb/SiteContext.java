@@ -0,0 +1,40 @@
+package edu.nyu.cs.adb;
+
+/**
+ * What a database manager needs from the transaction manager: the current
+ * time, the start time of the oldest running read-only transaction, and a
+ * way to report granted lock requests. The transaction manager implements it
+ * for sites in the same process, a site server for remote sites.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+interface SiteContext {
+
+  /**
+   * Return the current time stamp.
+   *
+   * @return current time stamp
+   */
+  int getCurrentTime();
+
+  /**
+   * Return the start time of the oldest running read-only transaction.
+   *
+   * @return start time, or -1 if there is none
+   */
+  int getOldestReadonlyTimestamp();
+
+  /**
+   * Called when a queued lock request is granted.
+   *
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   * @param siteIndex
+   *          index of the site granting the lock
+   */
+  void lockGranted(int tid, int varIndex, int siteIndex);
+}
@@ -0,0 +1,265 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the write-ahead log of one site. Committed writes are appended
+ * as fixed size records (variable index, value, version number), and each
+ * transaction's records are closed by a commit record, whose variable index is
+ * 0 and whose value is the number of records it closes. A transaction
+ * committed in two phases has a prepare record (variable index -1) between
+ * its writes and its commit record, or an abort record (variable index -2)
+ * discarding its writes if it aborts after preparing. Prepared writes left
+ * without a commit or abort record by a crash are in doubt, and stay in the
+ * log until the outcome of their transaction is known. Appended records are
+ * buffered until flush, which writes them and forces them to disk, so the
+ * commits of one tick can share one fsync (group commit).
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class SiteLog {
+
+  private static final int RECORD_SIZE = 12;
+
+  private File _file;
+  private FileChannel _channel;
+  private ByteBuffer _buffer = ByteBuffer.allocate(64 * RECORD_SIZE);
+
+  // number of records appended since last commit record
+  private int _pending = 0;
+
+  // transaction whose prepared writes are in doubt after replay, 0 if none,
+  // and its writes
+  private int _inDoubt = 0;
+  private List<int[]> _inDoubtWrites = new ArrayList<int[]>();
+
+  // number of fsyncs done
+  private long _syncCount = 0;
+
+  public SiteLog(File file) throws IOException {
+    _file = file;
+    _channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    _channel.position(_channel.size());
+  }
+
+  /**
+   * Append a committed write of given variable.
+   *
+   * @param varIndex
+   * @param value
+   * @param version
+   */
+  public void append(int varIndex, int value, int version) {
+    put(varIndex, value, version);
+    _pending++;
+  }
+
+  /**
+   * Append a commit record closing the writes appended since last commit
+   * record. Nothing is appended if there are no such writes.
+   *
+   * @param commitTime
+   * @return true if a commit record is appended
+   */
+  public boolean commit(int commitTime) {
+    if (_pending == 0) {
+      return false;
+    }
+    put(0, _pending, commitTime);
+    _pending = 0;
+    _inDoubt = 0;
+    return true;
+  }
+
+  /**
+   * Append a prepare record after the writes appended since last commit
+   * record, which stay open until the commit or abort record.
+   *
+   * @param tid
+   *          transaction id
+   * @return true if a prepare record is appended
+   */
+  public boolean prepare(int tid) {
+    if (_pending == 0) {
+      return false;
+    }
+    put(-1, _pending, tid);
+    return true;
+  }
+
+  /**
+   * Append an abort record discarding the prepared writes appended since last
+   * commit record.
+   *
+   * @param tid
+   *          transaction id
+   * @return true if an abort record is appended
+   */
+  public boolean abort(int tid) {
+    if (_pending == 0) {
+      return false;
+    }
+    put(-2, _pending, tid);
+    _pending = 0;
+    _inDoubt = 0;
+    return true;
+  }
+
+  /**
+   * Write buffered records to the file and force them to disk.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    if (_buffer.position() == 0) {
+      return;
+    }
+    _buffer.flip();
+    while (_buffer.hasRemaining()) {
+      _channel.write(_buffer);
+    }
+    _buffer.clear();
+    _channel.force(false);
+    _syncCount++;
+  }
+
+  /**
+   * Flush buffered records, then remove all the records from the log, after
+   * they have been covered by a checkpoint.
+   *
+   * @throws IOException
+   */
+  public void truncate() throws IOException {
+    flush();
+    _channel.truncate(0);
+    _channel.position(0);
+    _channel.force(false);
+  }
+
+  /**
+   * Read all the committed writes in the log, in the order they were
+   * committed. Writes not closed by a commit record, left by a crash, are
+   * ignored and cut from the log, so that new records follow the last commit.
+   * Prepared writes whose commit or abort record was not written are kept
+   * instead, and their transaction is in doubt until resolved by
+   * {@link #commit(int)} or {@link #abort(int)}.
+   *
+   * @return list of records, each one {variable index, value, version}
+   * @throws IOException
+   */
+  public List<int[]> replay() throws IOException {
+    List<int[]> result = new ArrayList<int[]>();
+    List<int[]> batch = new ArrayList<int[]>();
+    ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+    long position = 0;
+    long committedEnd = 0;
+    // end of the last prepare record, and its transaction and count
+    long preparedEnd = 0;
+    int preparedTid = 0;
+    int preparedCount = 0;
+    // a read shorter than one record only happens at a torn end of file
+    while (_channel.read(buffer, position) >= RECORD_SIZE) {
+      buffer.flip();
+      while (buffer.remaining() >= RECORD_SIZE) {
+        int varIndex = buffer.getInt();
+        int value = buffer.getInt();
+        int time = buffer.getInt();
+        position += RECORD_SIZE;
+        if (varIndex == 0) {
+          if (value == batch.size()) {
+            result.addAll(batch);
+          }
+          batch.clear();
+          committedEnd = position;
+        } else if (varIndex == -2) {
+          batch.clear();
+          committedEnd = position;
+        } else if (varIndex == -1) {
+          // prepared, closed by the following commit or abort record
+          preparedEnd = position;
+          preparedTid = time;
+          preparedCount = value;
+        } else {
+          batch.add(new int[] { varIndex, value, time });
+        }
+      }
+      buffer.clear();
+    }
+    if (preparedEnd > committedEnd && batch.size() >= preparedCount) {
+      _inDoubt = preparedTid;
+      _inDoubtWrites = new ArrayList<int[]>(batch.subList(0, preparedCount));
+      _pending = preparedCount;
+      committedEnd = preparedEnd;
+    }
+    _channel.truncate(committedEnd);
+    _channel.position(committedEnd);
+    return result;
+  }
+
+  /**
+   * Get the transaction whose prepared writes are in doubt after replay.
+   *
+   * @return transaction id, or 0 if none
+   */
+  public int getInDoubt() {
+    return _inDoubt;
+  }
+
+  /**
+   * Get the prepared writes of the transaction in doubt.
+   *
+   * @return list of records, each one {variable index, value, version}
+   */
+  public List<int[]> getInDoubtWrites() {
+    return _inDoubtWrites;
+  }
+
+  /**
+   * Get the number of fsyncs done.
+   *
+   * @return number of fsyncs
+   */
+  public long getSyncCount() {
+    return _syncCount;
+  }
+
+  /**
+   * Get the log file.
+   *
+   * @return file
+   */
+  public File getFile() {
+    return _file;
+  }
+
+  /**
+   * Flush buffered records and close the log.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    flush();
+    _channel.close();
+  }
+
+  private void put(int varIndex, int value, int time) {
+    if (_buffer.remaining() < RECORD_SIZE) {
+      ByteBuffer buffer = ByteBuffer.allocate(_buffer.capacity() * 2);
+      _buffer.flip();
+      buffer.put(_buffer);
+      _buffer = buffer;
+    }
+    _buffer.putInt(varIndex);
+    _buffer.putInt(value);
+    _buffer.putInt(time);
+  }
+}
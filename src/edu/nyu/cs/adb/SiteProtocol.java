@@ -0,0 +1,180 @@
+package edu.nyu.cs.adb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol between the transaction manager and remote sites. Every
+ * frame is a length (not counting itself) followed by a request id and a
+ * code. A request carries the current time and the start time of the oldest
+ * running read-only transaction after its code, then the arguments of the
+ * operation. A reply has the id of its request, and code OK followed by the
+ * result, or ERROR followed by a message. The server also pushes granted
+ * locks to the client, in frames with request id 0. Requests on one
+ * connection are executed and replied in order, but a client may send many
+ * requests before reading the replies.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+final class SiteProtocol {
+
+  // request codes
+  static final byte INIT = 1;
+  static final byte STATUS = 2;
+  static final byte READ = 3;
+  static final byte IS_WRITABLE = 4;
+  static final byte CONFLICTS = 5;
+  static final byte WRITE = 6;
+  static final byte COMMIT = 7;
+  static final byte ABORT = 8;
+  static final byte FAIL = 9;
+  static final byte RECOVER = 10;
+  static final byte ENQUEUE_LOCK = 11;
+  static final byte ACCESSED = 12;
+  static final byte DUMP = 13;
+  static final byte DATA_MAP = 14;
+  static final byte FLUSH_LOG = 15;
+  static final byte CLOSE_LOG = 16;
+  static final byte VERSION = 17;
+  static final byte HAS_SNAPSHOT = 18;
+  static final byte OUTSTANDING = 19;
+  static final byte SWEEP = 20;
+  static final byte RETAINED = 21;
+  static final byte RECLAIMED = 22;
+  static final byte PREPARE = 23;
+  static final byte UNDO_WRITE = 24;
+  static final byte IN_DOUBT = 25;
+  static final byte RESOLVE = 26;
+
+  // reply codes
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  // pushed by the server, with request id 0
+  static final byte LOCK_GRANTED = 100;
+
+  private SiteProtocol() {
+  }
+
+  /**
+   * Output stream building the body of one frame.
+   */
+  static class FrameWriter extends DataOutputStream {
+
+    FrameWriter(int id, byte code) {
+      super(new ByteArrayOutputStream());
+      try {
+        writeInt(0); // length, set by toBuffer
+        writeInt(id);
+        writeByte(code);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void putInt(int value) {
+      try {
+        writeInt(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void putLong(long value) {
+      try {
+        writeLong(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void putBoolean(boolean value) {
+      try {
+        writeBoolean(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void putString(String value) {
+      try {
+        writeUTF(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    void putTransaction(Transaction t) {
+      putInt(t.getTranId());
+      putInt(t.getTimestamp());
+      putBoolean(t.getType() == Transaction.Type.RO);
+    }
+
+    void putIntList(IntList values) {
+      putInt(values.size());
+      for (int i = 0; i < values.size(); i++) {
+        putInt(values.get(i));
+      }
+    }
+
+    void putData(Data d) {
+      putBoolean(d != null);
+      if (d != null) {
+        putInt(d.getIndex());
+        putInt(d.getValue());
+        putInt(d.getCommitTime());
+        putInt(d.getVersion());
+        putBoolean(d.getAccess());
+        putInt(d.getUnavailableTime());
+      }
+    }
+
+    /* Return the frame, ready to be written to a channel */
+    ByteBuffer toBuffer() {
+      byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      buffer.putInt(0, bytes.length - 4);
+      return buffer;
+    }
+  }
+
+  static IntList getIntList(ByteBuffer buffer, IntList into) {
+    int size = buffer.getInt();
+    for (int i = 0; i < size; i++) {
+      into.add(buffer.getInt());
+    }
+    return into;
+  }
+
+  static Transaction getTransaction(ByteBuffer buffer) {
+    int tid = buffer.getInt();
+    int timestamp = buffer.getInt();
+    boolean readonly = buffer.get() != 0;
+    return new Transaction(tid, timestamp, readonly ? Transaction.Type.RO
+        : Transaction.Type.RW);
+  }
+
+  static Data getData(ByteBuffer buffer) {
+    if (buffer.get() == 0) {
+      return null;
+    }
+    Data d = new Data(buffer.getInt(), buffer.getInt());
+    d.setCommitTime(buffer.getInt());
+    d.setVersion(buffer.getInt());
+    d.setAccess(buffer.get() != 0);
+    d.setUnavailableTime(buffer.getInt());
+    return d;
+  }
+
+  static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xffff;
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,352 @@
+package edu.nyu.cs.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server hosting the database manager of one site, so that sites can run as
+ * separate processes. It serves the binary protocol of {@link SiteProtocol}
+ * on a non-blocking socket: one selector thread accepts connections, reads
+ * frames, executes requests on the database manager in the order they
+ * arrive, and queues the replies until the socket can take them.
+ * -----------------------------------------------------------------------
+ * Usage:
+ *
+ *    java -Dadb.sites=10 -Dadb.variables=20 -cp src edu.nyu.cs.adb.SiteServer
+ *         <SITE_INDEX> <PORT>
+ *
+ * The placement (adb.replication, adb.vnodes) and logging (adb.logdir,
+ * adb.groupcommit, adb.checkpoint) properties are the same as for Database,
+ * and must match the transaction manager's.
+ * -----------------------------------------------------------------------
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+public class SiteServer implements SiteContext {
+
+  /* A client connection, with the bytes read but not yet framed and the
+   * replies not yet written. */
+  private static class Connection {
+    private SocketChannel _channel;
+    private ByteBuffer _input = ByteBuffer.allocate(4096);
+    private ArrayDeque<ByteBuffer> _output = new ArrayDeque<ByteBuffer>();
+
+    Connection(SocketChannel channel) {
+      _channel = channel;
+    }
+  }
+
+  private int _siteIndex;
+  private DatabaseManager _dm;
+
+  // conflicting transactions of the current request
+  private IntList _conflicts = new IntList();
+
+  // time and oldest read-only start time sent with the current request
+  private int _currentTime = 0;
+  private int _oldestReadonly = -1;
+
+  // connection of the request being executed, to which lock grants are pushed
+  private Connection _current;
+
+  public SiteServer(int siteIndex) {
+    _siteIndex = siteIndex;
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("Usage: SiteServer <SITE_INDEX> <PORT>");
+      return;
+    }
+    SiteServer server = new SiteServer(Integer.parseInt(args[0]));
+    try {
+      server.serve(new InetSocketAddress(Integer.parseInt(args[1])));
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Accept connections and serve requests at given address, until the
+   * process is stopped.
+   *
+   * @param address
+   * @throws IOException
+   */
+  public void serve(InetSocketAddress address) throws IOException {
+    init(Integer.getInteger("adb.variables", 20));
+    Selector selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(address);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("Site" + _siteIndex + " listening on "
+        + server.getLocalAddress());
+    while (true) {
+      selector.select();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (key.isAcceptable()) {
+            SocketChannel channel = server.accept();
+            if (channel != null) {
+              channel.configureBlocking(false);
+              channel.socket().setTcpNoDelay(true);
+              channel.register(selector, SelectionKey.OP_READ,
+                  new Connection(channel));
+            }
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          if (key.isReadable()) {
+            read(connection);
+          }
+          if (key.isWritable() || !connection._output.isEmpty()) {
+            write(connection);
+          }
+          key.interestOps(connection._output.isEmpty() ? SelectionKey.OP_READ
+              : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+          key.cancel();
+          key.channel().close();
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getCurrentTime() {
+    return _currentTime;
+  }
+
+  @Override
+  public int getOldestReadonlyTimestamp() {
+    return _oldestReadonly;
+  }
+
+  @Override
+  public void lockGranted(int tid, int varIndex, int siteIndex) {
+    if (_current != null) {
+      SiteProtocol.FrameWriter frame = new SiteProtocol.FrameWriter(0,
+          SiteProtocol.LOCK_GRANTED);
+      frame.putInt(tid);
+      frame.putInt(varIndex);
+      _current._output.add(frame.toBuffer());
+    }
+  }
+
+  /* Create the database manager, with the placement and log of the
+   * properties. */
+  private void init(int nVariables) {
+    if (_dm != null) {
+      _dm.closeLog();
+    }
+    int nSites = Integer.getInteger("adb.sites", 10);
+    String replication = System.getProperty("adb.replication");
+    Placement placement;
+    if (replication != null) {
+      placement = new HashRingPlacement(nSites, nVariables,
+          Integer.getInteger("adb.vnodes", 64), replication);
+    } else {
+      placement = new DefaultPlacement(nSites, nVariables);
+    }
+    _dm = new DatabaseManager(_siteIndex, this);
+    _dm.init(nVariables, placement);
+    String logDir = System.getProperty("adb.logdir");
+    if (logDir != null) {
+      File dir = new File(logDir);
+      dir.mkdirs();
+      _dm.openLog(dir,
+          Boolean.parseBoolean(System.getProperty("adb.groupcommit", "true")),
+          Integer.getInteger("adb.checkpoint", 0));
+    }
+  }
+
+  /* Read available bytes and execute every complete request */
+  private void read(Connection connection) throws IOException {
+    if (connection._channel.read(connection._input) == -1) {
+      throw new IOException("Connection closed");
+    }
+    ByteBuffer input = connection._input;
+    input.flip();
+    while (input.remaining() >= 4
+        && input.remaining() >= 4 + input.getInt(input.position())) {
+      int length = input.getInt();
+      ByteBuffer frame = input.slice();
+      frame.limit(length);
+      input.position(input.position() + length);
+      connection._output.add(execute(connection, frame));
+    }
+    input.compact();
+    if (!input.hasRemaining()) {
+      // frame larger than the buffer
+      ByteBuffer larger = ByteBuffer.allocate(input.capacity() * 2);
+      input.flip();
+      larger.put(input);
+      connection._input = larger;
+    }
+  }
+
+  private void write(Connection connection) throws IOException {
+    while (!connection._output.isEmpty()) {
+      ByteBuffer buffer = connection._output.peek();
+      connection._channel.write(buffer);
+      if (buffer.hasRemaining()) {
+        return;
+      }
+      connection._output.poll();
+    }
+  }
+
+  /* Execute one request and return its reply frame */
+  private ByteBuffer execute(Connection connection, ByteBuffer request) {
+    int id = request.getInt();
+    byte code = request.get();
+    _currentTime = request.getInt();
+    _oldestReadonly = request.getInt();
+    _current = connection;
+    SiteProtocol.FrameWriter reply = new SiteProtocol.FrameWriter(id,
+        SiteProtocol.OK);
+    try {
+      executeOperation(code, request, reply);
+    } catch (RuntimeException e) {
+      reply = new SiteProtocol.FrameWriter(id, SiteProtocol.ERROR);
+      reply.putString(String.valueOf(e));
+    } finally {
+      _current = null;
+    }
+    return reply.toBuffer();
+  }
+
+  private void executeOperation(byte code, ByteBuffer request,
+      SiteProtocol.FrameWriter reply) {
+    switch (code) {
+    case SiteProtocol.INIT:
+      init(request.getInt());
+      break;
+    case SiteProtocol.STATUS:
+      reply.putBoolean(_dm.getStatus());
+      break;
+    case SiteProtocol.READ: {
+      Transaction t = SiteProtocol.getTransaction(request);
+      _conflicts.clear();
+      reply.putData(_dm.read(t, request.getInt(), _conflicts));
+      reply.putIntList(_conflicts);
+      break;
+    }
+    case SiteProtocol.IS_WRITABLE:
+      _conflicts.clear();
+      reply.putBoolean(_dm.isWritable(request.getInt(), request.getInt(),
+          _conflicts));
+      reply.putIntList(_conflicts);
+      break;
+    case SiteProtocol.CONFLICTS:
+      _conflicts.clear();
+      reply.putBoolean(_dm.getConflictTrans(request.getInt(),
+          request.getInt(), _conflicts));
+      reply.putIntList(_conflicts);
+      break;
+    case SiteProtocol.WRITE: {
+      Transaction t = SiteProtocol.getTransaction(request);
+      int varIndex = request.getInt();
+      int value = request.getInt();
+      int version = request.getInt();
+      _conflicts.clear();
+      reply.putBoolean(_dm.write(t, varIndex, value, version, _conflicts));
+      reply.putIntList(_conflicts);
+      break;
+    }
+    case SiteProtocol.UNDO_WRITE:
+      _dm.undoWrite(request.getInt(), request.getInt());
+      break;
+    case SiteProtocol.PREPARE:
+      reply.putBoolean(_dm.prepare(request.getInt()));
+      break;
+    case SiteProtocol.COMMIT:
+      _dm.commit(request.getInt());
+      break;
+    case SiteProtocol.IN_DOUBT:
+      reply.putInt(_dm.getInDoubtTransaction());
+      break;
+    case SiteProtocol.RESOLVE:
+      _dm.resolve(request.getInt(), request.getInt());
+      break;
+    case SiteProtocol.ABORT:
+      _dm.abort(request.getInt());
+      break;
+    case SiteProtocol.FAIL:
+      _dm.fail();
+      break;
+    case SiteProtocol.RECOVER:
+      _dm.recover(request.get() != 0);
+      break;
+    case SiteProtocol.ENQUEUE_LOCK: {
+      int tid = request.getInt();
+      int varIndex = request.getInt();
+      _dm.enqueueLock(tid, varIndex, request.get() != 0 ? Lock.Type.WRITE
+          : Lock.Type.READ);
+      break;
+    }
+    case SiteProtocol.ACCESSED: {
+      List<Integer> accessed = _dm.getAccessedTransaction();
+      reply.putInt(accessed.size());
+      for (Integer tid : accessed) {
+        reply.putInt(tid);
+      }
+      break;
+    }
+    case SiteProtocol.DUMP:
+      reply.putData(_dm.dump(request.getInt()));
+      break;
+    case SiteProtocol.DATA_MAP: {
+      Map<Integer, Data> dataMap = _dm.getDataMap();
+      reply.putInt(dataMap.size());
+      for (Data d : dataMap.values()) {
+        reply.putData(d);
+      }
+      break;
+    }
+    case SiteProtocol.FLUSH_LOG:
+      _dm.flushLog();
+      break;
+    case SiteProtocol.CLOSE_LOG:
+      _dm.closeLog();
+      break;
+    case SiteProtocol.VERSION:
+      reply.putInt(_dm.getVersion(request.getInt()));
+      break;
+    case SiteProtocol.HAS_SNAPSHOT: {
+      Transaction t = SiteProtocol.getTransaction(request);
+      reply.putBoolean(_dm.hasSnapshotVersion(t, request.getInt()));
+      break;
+    }
+    case SiteProtocol.OUTSTANDING:
+      reply.putInt(_dm.getOutstandingRequests());
+      break;
+    case SiteProtocol.SWEEP:
+      _dm.sweepVersions();
+      break;
+    case SiteProtocol.RETAINED:
+      reply.putLong(_dm.getVersionsRetained());
+      break;
+    case SiteProtocol.RECLAIMED:
+      reply.putLong(_dm.getVersionsReclaimed());
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown request: " + code);
+    }
+  }
+}
@@ -1,19 +1,31 @@
 package edu.nyu.cs.adb;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 
 /**
  * Transaction manager (TM) acts as the interface between database user and
@@ -23,34 +35,188 @@ import java.util.Set;
  * @author Jingxin Zhu
  * @author Wuping Lei
  */
-public class TransactionManager {
+public class TransactionManager implements SiteContext {
 
   // Global time stamp
-  private int timestamp;
+  private AtomicInteger timestamp = new AtomicInteger();
 
   // General input reader
   private BufferedReader br;
 
-  // trace whether there is a transaction abort or commit or site recover
-  // Which might cause waiting transaction be able to execute
-  private boolean commitOrAbortOrRecover;
-
   // Map<Transaction id, Transaction>.
-  private Map<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+  private Map<Integer, Transaction> transactions = new ConcurrentHashMap<Integer, Transaction>();
+
+  private List<Site> databaseManagers;
+
+  // The same sites as database managers, null if they are remote sites.
+  // Catching up and comparing replicas need two of them in this process.
+  private List<DatabaseManager> localSites;
+
+  // Directory of site logs, null if logging is disabled, and whether the logs
+  // are forced once per tick (group commit) instead of at each commit.
+  private File logDirectory;
+  private boolean groupCommit;
+
+  // Log of the commit decisions of transactions committed in two phases,
+  // null if logging is disabled.
+  private DecisionLog decisions;
+
+  // Transactions committed in this tick whose commit is not reported yet,
+  // since with group commit it is durable only once the logs are forced.
+  private ConcurrentLinkedQueue<Integer> unflushedCommits = new ConcurrentLinkedQueue<Integer>();
+
+  // Number of commits at a site between checkpoints, 0 if disabled.
+  private int checkpointInterval;
+
+  // Number of variables per transfer when a recovered site catches up from
+  // its peers, 0 if recovered sites do not catch up.
+  private int catchUpBatchSize;
+
+  // Policy ordering the sites tried by a read, and its selector.
+  private String replicaSelection = "ordered";
+  private ReplicaSelector replicaSelector;
+
+  // Policy deciding whether a blocked operation waits or aborts.
+  private String concurrencyPolicyName = "waitdie";
+  private ConcurrencyPolicy concurrencyPolicy;
+
+  // Maximum number of restarts of an aborted transaction, 0 if aborted
+  // transactions do not restart, ticks before the first restart, and the
+  // operation logs of the transactions, null if they do not restart.
+  private int restartLimit;
+  private int restartBackoff;
+  private RestartScheduler restarts;
+
+  // Read and write quorum sizes for replicated variables, 0 if replicated
+  // variables use available copies (read one, write all available).
+  private int readQuorum;
+  private int writeQuorum;
 
-  private List<DatabaseManager> databaseManagers;
+  // Number of sites and number of variables in database.
+  private int nDatabaseManagers;
+  private int nVariables;
 
-  // Map<Variable index, List of sites storing this variable>.
-  private Map<Integer, List<Integer>> variableMap;
+  // Virtual nodes per site and replication factors of the consistent hashing
+  // ring, null if the default placement is used.
+  private int virtualNodes;
+  private String ringReplication;
+
+  // Sites storing each variable.
+  private Placement placement;
 
   // List of transaction id that have been aborted.
-  private Set<Integer> abortedTransactions = new HashSet<Integer>();
+  private Set<Integer> abortedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 
   // List of transaction id that have committed.
-  private Set<Integer> committedTransactions = new HashSet<Integer>();
+  private Set<Integer> committedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  // Active READ_ONLY transactions, shared with database managers.
+  private ReadonlyRegistry readonlyRegistry = new ReadonlyRegistry();
+
+  // Map<Transaction id, Set of site indexes the transaction has touched>.
+  // Commit and abort are only sent to these participant sites.
+  private Map<Integer, Set<Integer>> participants = new ConcurrentHashMap<Integer, Set<Integer>>();
+
+  // Map<Transaction id, Set of variable indexes the transaction has written>.
+  private Map<Integer, Set<Integer>> writtenVariables = new ConcurrentHashMap<Integer, Set<Integer>>();
+
+  // All waiting operations, indexed by the transaction or variable they wait
+  // for.
+  private WaitQueue waitingOperations = new WaitQueue();
+
+  // Whether concurrent sessions are running. Reads and writes then hold the
+  // read side of stateLock and the stripe lock of their variable, any other
+  // instruction holds the write side and runs alone.
+  private volatile boolean concurrent = false;
+  private ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+  private ReentrantLock[] stripes;
+
+  // Whether each site runs the requests sent to several sites on its own
+  // thread, and the single-thread executor of each site, whose queue is the
+  // mailbox of the site. Null if sites are called on the caller's thread.
+  private boolean useSiteExecutors;
+  private List<ExecutorService> siteExecutors;
+
+  // Addresses of the site servers, in site order, null if sites run in this
+  // process.
+  private List<InetSocketAddress> remoteSites;
+
+  // Creates the concurrent set of a transaction in the maps above.
+  private static final Function<Integer, Set<Integer>> NEW_SET =
+      new Function<Integer, Set<Integer>>() {
+    @Override
+    public Set<Integer> apply(Integer tid) {
+      return Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    }
+  };
+
+  // Request sent to a site by a fan-out.
+  private interface SiteTask<T> {
+    T call(Site dm);
+  }
+
+  // Buffer of conflicting transaction ids of each thread running reads and
+  // writes, reused by every operation.
+  private ThreadLocal<IntList> conflictBuffers = new ThreadLocal<IntList>() {
+    @Override
+    protected IntList initialValue() {
+      return new IntList();
+    }
+  };
 
-  // Queue of all waiting operations.
-  private Queue<Operation> waitingOperations = new LinkedList<Operation>();
+  // Lock and write request of a write, sent to each live site storing the
+  // variable. The conflicts found by a site go to the buffer of the thread,
+  // or with site executors to a buffer of the site, since sites then run in
+  // parallel.
+  private class WriteTask implements SiteTask<IntList> {
+    private Transaction t;
+    private int varIndex;
+    private int value;
+    private int version;
+    private IntList conflicts;
+    private IntList[] siteConflicts;
+
+    @Override
+    public IntList call(Site dm) {
+      IntList buffer = conflicts;
+      if (siteExecutors != null) {
+        buffer = siteConflicts[dm.getIndex() - 1];
+        buffer.clear();
+      }
+      return dm.write(t, varIndex, value, version, buffer) ? null : buffer;
+    }
+  }
+
+  // Lists of each thread running reads and writes, reused by every operation
+  // instead of allocated per operation.
+  private class Scratch {
+    private List<Site> liveSites = new ArrayList<Site>();
+    private List<Site> blockedSites = new ArrayList<Site>();
+    private List<Site> writtenSites = new ArrayList<Site>();
+    private List<IntList> replies = new ArrayList<IntList>();
+    private List<Transaction> holders = new ArrayList<Transaction>();
+    private List<Integer> replicas = new ArrayList<Integer>();
+    private List<Integer> otherReplicas = new ArrayList<Integer>();
+    private WriteTask writeTask = new WriteTask();
+  }
+
+  private ThreadLocal<Scratch> scratchLists = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  // Transactions the concurrency policy decided to abort while holding the
+  // read side of stateLock, or while other operations of the tick still had
+  // to queue their lock requests, aborted once it is released or at the end
+  // of the tick.
+  private ConcurrentLinkedQueue<Integer> pendingAborts = new ConcurrentLinkedQueue<Integer>();
+
+  // Transactions whose end arrived while some of their operations were
+  // waiting, in the order the ends arrived. Outside restart mode, they end at
+  // the end of the tick in which none of their operations waits any more.
+  private Set<Integer> deferredEnds = new LinkedHashSet<Integer>();
 
   /**
    * Constructor with standard input .
@@ -75,8 +241,9 @@ public class TransactionManager {
    * 
    * @return current time stamp.
    */
+  @Override
   public int getCurrentTime() {
-    return timestamp;
+    return timestamp.get();
   }
 
   /**
@@ -85,44 +252,248 @@ public class TransactionManager {
    * @return true if there is running READ_ONLY transaction.
    */
   public boolean hasRunningReadonly() {
-    for (Integer tid : transactions.keySet()) {
-      if (transactions.get(tid).getType() == Transaction.Type.RO
-          && !committedTransactions.contains(tid)
-          && !abortedTransactions.contains(tid)) {
-        return true;
-      }
-    }
-    return false;
+    return readonlyRegistry.hasRunning();
+  }
+
+  /**
+   * Return the start time of the oldest running READ_ONLY transaction.
+   * 
+   * @return start time, or -1 if there is none
+   */
+  @Override
+  public int getOldestReadonlyTimestamp() {
+    return readonlyRegistry.getOldestTimestamp();
   }
 
   /**
-   * Initialize database managers of the given number.
+   * Enable write-ahead logging of committed writes at each site. Must be
+   * called before init.
+   * 
+   * @param dir
+   *          directory of site logs
+   * @param group
+   *          if true, force the logs once per tick, otherwise at each commit.
+   *          Commits are then reported at the end of the tick, once the logs
+   *          are forced.
+   */
+  public void setLogDirectory(String dir, boolean group) {
+    logDirectory = new File(dir);
+    logDirectory.mkdirs();
+    groupCommit = group;
+  }
+
+  /**
+   * Let each site write a checkpoint and truncate its log after given number
+   * of commits. Only used when logging is enabled. Must be called before init.
+   * 
+   * @param interval
+   *          number of commits between checkpoints, 0 to disable
+   */
+  public void setCheckpointInterval(int interval) {
+    checkpointInterval = interval;
+  }
+
+  /**
+   * Let a recovered site pull the replicated variables from its peers in
+   * batches of given size, so that they are readable immediately.
+   * 
+   * @param batchSize
+   *          number of variables per transfer, 0 to disable catch up
+   */
+  public void setCatchUpBatchSize(int batchSize) {
+    catchUpBatchSize = batchSize;
+  }
+
+  /**
+   * Set the policy choosing the order in which a read tries the sites storing
+   * a variable. Must be called before init.
+   * 
+   * @param policy
+   *          ordered (default), roundrobin, leastoutstanding or affinity
+   */
+  public void setReplicaSelection(String policy) {
+    replicaSelection = policy;
+  }
+
+  /**
+   * Set the policy deciding whether an operation blocked by conflicting locks
+   * waits or aborts. Must be called before init.
+   * 
+   * @param policy
+   *          waitdie (default), woundwait, nowait or waitforgraph
+   */
+  public void setConcurrencyPolicy(String policy) {
+    concurrencyPolicyName = policy;
+  }
+
+  /**
+   * Restart aborted READ_WRITE transactions: each operation of a transaction
+   * is logged, and an aborted transaction is replayed with its original
+   * timestamp after a backoff doubling at each restart. Must be called before
+   * init.
+   * 
+   * @param limit
+   *          maximum number of restarts of a transaction, 0 to disable
+   * @param backoff
+   *          number of ticks before the first restart
+   */
+  public void setRestart(int limit, int backoff) {
+    restartLimit = limit;
+    restartBackoff = backoff;
+  }
+
+  /**
+   * Use quorum replication for replicated variables: a write goes to the given
+   * number of sites, and a read reads the given number of sites and returns
+   * the newest version. Every read quorum must intersect every write quorum,
+   * and any two write quorums must intersect. Must be called before init.
+   * 
+   * @param read
+   *          read quorum size
+   * @param write
+   *          write quorum size
+   */
+  public void setQuorum(int read, int write) {
+    readQuorum = read;
+    writeQuorum = write;
+  }
+
+  /**
+   * Let each site run on its own thread, so that the requests the TM sends to
+   * several sites (write, commit, abort, log flush) run in parallel. Must be
+   * called before init.
+   * 
+   * @param enabled
+   */
+  public void setSiteExecutors(boolean enabled) {
+    useSiteExecutors = enabled;
+  }
+
+  /**
+   * Use sites served by SiteServer processes at given addresses instead of
+   * sites in this process. The servers must use the same number of sites,
+   * placement and log settings. Must be called before init.
+   * 
+   * @param addresses
+   *          address of each site, in site order
+   */
+  public void setRemoteSites(List<InetSocketAddress> addresses) {
+    remoteSites = addresses;
+  }
+
+  /**
+   * Place variables on a consistent hashing ring instead of the default
+   * placement (odd variables at one site, even variables at all sites). Must
+   * be called before init.
+   * 
+   * @param nodes
+   *          number of virtual nodes per site
+   * @param replication
+   *          default replication factor, followed by factors of variable
+   *          ranges, e.g. "3,1-1000:5"
+   */
+  public void setHashRing(int nodes, String replication) {
+    virtualNodes = nodes;
+    ringReplication = replication;
+  }
+
+  /**
+   * Initialize database managers of the given number, with 20 variables.
    * 
    * @param nDatabaseManager
    *          the number of database managers to be initialized.
    */
   public void init(int nDatabaseManager) {
-    timestamp = 0;
-    databaseManagers = new ArrayList<DatabaseManager>();
-    variableMap = new HashMap<Integer, List<Integer>>();
+    init(nDatabaseManager, 20);
+  }
+
+  /**
+   * Initialize database managers of the given number, storing the given
+   * number of variables.
+   * 
+   * @param nDatabaseManager
+   *          the number of database managers to be initialized.
+   * @param nVariable
+   *          the number of variables in database.
+   */
+  public void init(int nDatabaseManager, int nVariable) {
+    if (ringReplication != null) {
+      placement = new HashRingPlacement(nDatabaseManager, nVariable,
+          virtualNodes, ringReplication);
+    } else {
+      placement = new DefaultPlacement(nDatabaseManager, nVariable);
+    }
+    for (Integer n : placement.getReplicationFactors()) {
+      if (writeQuorum > 0 && n > 1
+          && (readQuorum < 1 || writeQuorum > n || readQuorum + writeQuorum <= n
+              || 2 * writeQuorum <= n)) {
+        throw new IllegalArgumentException("Invalid quorum: R=" + readQuorum
+            + ", W=" + writeQuorum + ", N=" + n);
+      }
+    }
+    if (remoteSites != null && catchUpBatchSize > 0) {
+      throw new IllegalArgumentException(
+          "Catch up is not available with remote sites");
+    }
+    timestamp.set(0);
+    if (stripes == null) {
+      stripes = new ReentrantLock[64];
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new ReentrantLock();
+      }
+    }
+    nDatabaseManagers = nDatabaseManager;
+    nVariables = nVariable;
+    if (databaseManagers != null) {
+      closeLogs();
+      shutdownSites();
+    }
+    if (logDirectory != null) {
+      try {
+        decisions = new DecisionLog(new File(logDirectory, "decisions.log"));
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+    }
+    databaseManagers = new ArrayList<Site>();
+    localSites = remoteSites == null ? new ArrayList<DatabaseManager>() : null;
     for (int index = 1; index <= nDatabaseManager; index++) {
-      DatabaseManager dm = new DatabaseManager(index, this);
-      dm.init();
+      Site dm;
+      if (remoteSites != null) {
+        dm = new RemoteSite(index, this, remoteSites.get(index - 1));
+      } else {
+        DatabaseManager local = new DatabaseManager(index, this);
+        localSites.add(local);
+        dm = local;
+      }
+      dm.init(nVariable, placement);
+      if (logDirectory != null) {
+        dm.openLog(logDirectory, groupCommit, checkpointInterval);
+      }
       databaseManagers.add(dm);
     }
-    for (int index = 1; index <= 20; index++) {
-      List<Integer> sites = new ArrayList<Integer>();
-      if (index % 2 == 1) {
-        // store odd variable at (1 + index mod 10) site
-        sites.add(1 + index % 10);
-      } else {
-        // even variable are stored in all sites.
-        for (int i = 1; i <= 10; i++) {
-          sites.add(i);
-        }
+    resolveInDoubt();
+    if (useSiteExecutors) {
+      siteExecutors = new ArrayList<ExecutorService>();
+      for (int index = 1; index <= nDatabaseManager; index++) {
+        final String name = "site-" + index;
+        siteExecutors.add(Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+              }
+            }));
       }
-      variableMap.put(index, sites);
     }
+    replicaSelector = ReplicaSelector.create(replicaSelection,
+        databaseManagers, participants);
+    concurrencyPolicy = ConcurrencyPolicy.create(concurrencyPolicyName,
+        transactions);
+    restarts = restartLimit > 0 ? new RestartScheduler(restartLimit,
+        Math.max(restartBackoff, 0)) : null;
   }
 
   /**
@@ -132,8 +503,6 @@ public class TransactionManager {
   public void run() {
     try {
       while (true) {
-        //Reset this boolean
-        commitOrAbortOrRecover = false;
         String line = br.readLine();
         if (line == null || line.contains("exit"))
           break;
@@ -144,26 +513,308 @@ public class TransactionManager {
           batchExecute(operations);
         }
 
-        // If there is a commit or abort or restart, re-issue all the waiting
-        // operations
-        while (commitOrAbortOrRecover == true) {
-          commitOrAbortOrRecover = false;
-          int size = waitingOperations.size();
-          for (int i = 0; i < size; i++) {
-            execute(waitingOperations.poll());
+        finishTick();
+        timestamp.incrementAndGet();
+      }
+      finishRestarts();
+      closeLogs();
+      shutdownSites();
+      br.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /**
+   * Run the given input files as concurrent sessions, one thread each. Reads
+   * and writes of different variables run in parallel, other instructions run
+   * one at a time. Wait-die still decides between conflicting transactions,
+   * using their begin timestamps.
+   * 
+   * @param inputFiles
+   */
+  public void runSessions(List<String> inputFiles) {
+    concurrent = true;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (final String inputFile : inputFiles) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          runSession(inputFile);
+        }
+      }, "session-" + inputFile);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    concurrent = false;
+    finishRestarts();
+    closeLogs();
+    shutdownSites();
+  }
+
+  // Keep ticking after the input ends until no aborted transaction is
+  // waiting to restart.
+  private void finishRestarts() {
+    if (restarts == null) {
+      return;
+    }
+    do {
+      finishTick();
+      timestamp.incrementAndGet();
+    } while (restarts.hasScheduled());
+  }
+
+  // Read and execute the instructions of one session.
+  private void runSession(String inputFile) {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+      try {
+        while (true) {
+          String line = reader.readLine();
+          if (line == null || line.contains("exit"))
+            break;
+          if (line.startsWith("//"))
+            continue;
+          if (!line.isEmpty()) {
+            executeConcurrently(line);
           }
+          timestamp.incrementAndGet();
         }
-        timestamp++;
+      } finally {
+        reader.close();
       }
-      br.close();
     } catch (IOException e) {
       System.err.println(e.getMessage());
     }
   }
 
+  /*
+   * Execute one line of a concurrent session. A line of only reads and
+   * writes shares the state with other sessions, holding the stripe lock of
+   * each variable while accessing it, any other line runs alone.
+   */
+  private void executeConcurrently(String line) {
+    if (isReadWriteOnly(line)) {
+      stateLock.readLock().lock();
+      try {
+        for (Operation oper : parseLine(line)) {
+          ReentrantLock stripe = stripes[Math.abs(oper.getVarIndex()
+              % stripes.length)];
+          stripe.lock();
+          try {
+            submit(oper);
+          } finally {
+            stripe.unlock();
+          }
+        }
+      } finally {
+        stateLock.readLock().unlock();
+      }
+    } else {
+      stateLock.writeLock().lock();
+      try {
+        batchExecute(parseLine(line));
+        finishTick();
+      } finally {
+        stateLock.writeLock().unlock();
+      }
+    }
+    if (!pendingAborts.isEmpty()
+        || (restarts != null && restarts.hasDue(timestamp.get()))) {
+      stateLock.writeLock().lock();
+      try {
+        finishTick();
+      } finally {
+        stateLock.writeLock().unlock();
+      }
+    }
+  }
+
+  // Check whether given line only has read and write instructions.
+  private boolean isReadWriteOnly(String line) {
+    for (String instruction : line.toLowerCase().replaceAll("\\s+", "")
+        .split(";")) {
+      if (!instruction.startsWith("r(") && !instruction.startsWith("w(")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Restart the aborted transactions whose backoff is over, abort the
+   * transactions whose abort was deferred, and re-issue the waiting operations
+   * woken up by commit, abort or recover, in the order they started waiting,
+   * and the operations of restarted transactions, then force the logs, so
+   * that the commits of this tick share one fsync (group commit), and report
+   * these commits.
+   */
+  private void finishTick() {
+    if (restarts != null) {
+      startRestarts();
+    }
+    Operation waiting;
+    boolean replayed;
+    do {
+      Integer tid;
+      while ((tid = pendingAborts.poll()) != null) {
+        abort(tid);
+      }
+      while ((waiting = waitingOperations.poll()) != null) {
+        concurrencyPolicy.operationWoken(waiting.getTranId(),
+            waiting.getVarIndex());
+        execute(waiting);
+      }
+      replayed = restarts != null && replay();
+      replayed |= endDeferred();
+    } while (replayed || !pendingAborts.isEmpty());
+    fanOut(databaseManagers, new SiteTask<Void>() {
+      @Override
+      public Void call(Site dm) {
+        dm.flushLog();
+        return null;
+      }
+    });
+    Integer tid;
+    while ((tid = unflushedCommits.poll()) != null) {
+      System.out.println("T" + tid + " is committed");
+    }
+  }
+
+  /*
+   * End the transactions whose end was deferred and none of whose operations
+   * waits any more, and forget the ones which have aborted meanwhile. Return
+   * true if some transaction ended.
+   */
+  private boolean endDeferred() {
+    if (deferredEnds.isEmpty()) {
+      return false;
+    }
+    List<Integer> ready = new ArrayList<Integer>();
+    Iterator<Integer> it = deferredEnds.iterator();
+    while (it.hasNext()) {
+      int tid = it.next();
+      if (hasAborted(tid)) {
+        it.remove();
+      } else if (!waitingOperations.isWaiting(tid)) {
+        it.remove();
+        ready.add(tid);
+      }
+    }
+    for (Integer tid : ready) {
+      endTransaction(tid);
+    }
+    return !ready.isEmpty();
+  }
+
+  /*
+   * Start the replay of the aborted transactions due to restart. Their
+   * waiting operations were dropped when they aborted.
+   */
+  private void startRestarts() {
+    for (Integer tid : restarts.takeDue(timestamp.get())) {
+      abortedTransactions.remove(tid);
+      System.out.println("T" + tid + " restarts with timestamp "
+          + transactions.get(tid).getTimestamp() + " (restart "
+          + restarts.getRestarts(tid) + ")");
+    }
+  }
+
+  /*
+   * Re-issue the logged operations of the restarted transactions, one at a
+   * time, stopping at an operation which waits until it has run. A
+   * transaction whose end has been deferred ends once all its operations have
+   * run. Return true if some operation was re-issued or some transaction
+   * ended.
+   */
+  private boolean replay() {
+    boolean replayed = false;
+    for (Integer tid : restarts.getReplaying()) {
+      while (!hasAborted(tid) && !waitingOperations.isWaiting(tid)) {
+        Operation oper = restarts.next(tid);
+        if (oper == null) {
+          if (restarts.hasEnded(tid)) {
+            endTransaction(tid);
+            replayed = true;
+          }
+          break;
+        }
+        execute(oper);
+        replayed = true;
+      }
+    }
+    return replayed;
+  }
+
+  /*
+   * Run given request at each given site and return the replies in the order
+   * of the sites. With site executors, the request is put in the mailbox of
+   * every site first, so the sites run it in parallel.
+   */
+  private <T> List<T> fanOut(List<Site> sites,
+      final SiteTask<T> task) {
+    return fanOut(sites, task, new ArrayList<T>(sites.size()));
+  }
+
+  /* Run given request at each given site, appending the replies to given
+   * list. */
+  private <T> List<T> fanOut(List<Site> sites,
+      final SiteTask<T> task, List<T> result) {
+    if (siteExecutors == null || sites.size() < 2) {
+      for (Site dm : sites) {
+        result.add(task.call(dm));
+      }
+      return result;
+    }
+    List<Future<T>> replies = new ArrayList<Future<T>>(sites.size());
+    for (final Site dm : sites) {
+      replies.add(siteExecutors.get(dm.getIndex() - 1).submit(
+          new Callable<T>() {
+            @Override
+            public T call() {
+              return task.call(dm);
+            }
+          }));
+    }
+    for (Future<T> reply : replies) {
+      try {
+        result.add(reply.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return result;
+  }
+
+  // Stop the site executors, if any.
+  private void shutdownSites() {
+    if (siteExecutors != null) {
+      for (ExecutorService executor : siteExecutors) {
+        executor.shutdown();
+      }
+      siteExecutors = null;
+    }
+    for (Site dm : databaseManagers) {
+      if (dm instanceof RemoteSite) {
+        ((RemoteSite) dm).close();
+      }
+    }
+  }
+
   /**
    * Parse line into list of operations. Execute instructions for "begin",
-   * "end", "fail", "recover" immediately.
+   * "end", "fail", "recover" immediately. The operations of a transaction
+   * earlier in the line are executed before its "end".
    */
   private List<Operation> parseLine(String line) {
     line = line.toLowerCase();
@@ -185,6 +836,10 @@ public class TransactionManager {
       } else if (token.equals("beginro")) {
         beginTransaction("RO", arg);
       } else if (token.equals("end")) {
+        if (hasOperationOf(result, parseTransactionId(arg))) {
+          batchExecute(result);
+          result.clear();
+        }
         endTransaction(arg);
       } else if (token.equals("fail")) {
         fail(parseSiteIndex(arg));
@@ -198,6 +853,8 @@ public class TransactionManager {
         parseDump(arg);
       } else if (token.equals("querystate")) {
         queryState();
+      } else if (token.equals("verify")) {
+        verify();
       } else if (token.equals("restart")) {
         restart();
       } else {
@@ -221,43 +878,167 @@ public class TransactionManager {
     if (transactions.containsKey(tid))
       return;
     if (type == "RO") {
-      transactions.put(tid, new Transaction(tid, timestamp,
-          Transaction.Type.RO));
+      Transaction t = new Transaction(tid, timestamp.get(),
+          Transaction.Type.RO);
+      transactions.put(tid, t);
+      readonlyRegistry.begin(t);
     } else {
-      transactions.put(tid, new Transaction(tid, timestamp,
+      transactions.put(tid, new Transaction(tid, timestamp.get(),
           Transaction.Type.RW));
+      if (restarts != null) {
+        restarts.begin(tid);
+      }
     }
   }
 
   /**
-   * Notify database managers to commit given transaction if that transaction
-   * has not been aborted and put that into committed list. If RO commits and no
-   * more RO left, then clear all the copies in DMs.
+   * Notify database managers of the sites this transaction has touched to
+   * commit given transaction if that transaction has not been aborted and put
+   * that into committed list. If RO commits, let DMs drop the old versions no
+   * longer visible to running RO transactions.
+   * 
+   * A transaction which has written at more than one site commits in two
+   * phases: the sites it wrote at prepare in parallel, and it aborts unless
+   * all of them vote to commit. Sites it only read at take no part in the
+   * first phase, and a transaction which has written at one site at most
+   * commits in one phase. With logging, the decision to commit is forced to
+   * the decision log before any site commits.
+   * 
+   * If aborted transactions restart, the end of a transaction waiting to
+   * restart, being replayed or having waiting operations is deferred until
+   * all its operations have run.
    * 
    * @param tidStr
    */
   public void endTransaction(String tidStr) {
-    int tid = parseTransactionId(tidStr);
+    endTransaction(parseTransactionId(tidStr));
+  }
+
+  private void endTransaction(final int tid) {
+    if (restarts != null && restarts.deferEnd(tid, hasAborted(tid),
+        waitingOperations.isWaiting(tid))) {
+      return;
+    }
+    // the waiting operations are part of the transaction, so it cannot
+    // commit without them
+    if (restarts == null && !hasAborted(tid)
+        && waitingOperations.isWaiting(tid)) {
+      if (deferredEnds.add(tid)) {
+        System.out.println("T" + tid + " ends once its waiting operations "
+            + "have run");
+      }
+      return;
+    }
     if (!hasAborted(tid)) {
-      for (DatabaseManager dm : databaseManagers) {
-        if (dm.getStatus()) {
+      List<Site> sites = getLiveParticipants(tid);
+      List<Site> writeSites = getWriteParticipants(tid, sites);
+      // a site fails by aborting the transactions that touched it, but a
+      // remote site whose connection is lost goes down on its own
+      int down = getLostParticipant(tid);
+      if (down > 0 || writeSites.size() > 1) {
+        int failed = down > 0 ? down : prepare(tid, writeSites);
+        if (failed == 0 && !logDecision(tid)) {
+          System.out.println("T" + tid + " aborts because its commit cannot "
+              + "be logged");
+          abort(tid);
+          if (restarts != null) {
+            restarts.deferEnd(tid, true, false);
+          }
+          return;
+        }
+        if (failed > 0) {
+          System.out.println("T" + tid + " aborts because Site" + failed
+              + (down > 0 ? " is down" : " cannot prepare"));
+          abort(tid);
+          if (restarts != null) {
+            restarts.deferEnd(tid, true, false);
+          }
+          return;
+        }
+      }
+      fanOut(sites, new SiteTask<Void>() {
+        @Override
+        public Void call(Site dm) {
           dm.commit(tid);
+          return null;
         }
+      });
+      participants.remove(tid);
+      if (logDirectory != null && groupCommit) {
+        unflushedCommits.add(tid);
+      } else {
+        System.out.println("T" + tid + " is committed");
       }
-      System.out.println("T" + tid + " is committed");
-      //If a Read-only transaction commits, check whether this is the last read-only
-      //If so, let all the DM clear all the old versions
-      commitOrAbortOrRecover = true;
       committedTransactions.add(tid);
-      if (transactions.containsKey(tid)) {
-        if (transactions.get(tid).getType() == Transaction.Type.RO
-            && !hasRunningReadonly()) {
-          for (DatabaseManager dm : databaseManagers) {
-            dm.clearAllVersions();
-          }
-        }
+      if (restarts != null) {
+        restarts.end(tid);
+      }
+      concurrencyPolicy.transactionEnded(tid);
+      endReadonly(tid);
+      wakeWaitingOperations(tid);
+    }
+  }
+
+  /*
+   * Resolve the transactions the sites prepared before a crash and found in
+   * doubt in their logs, with the decisions of the last run. Then the
+   * decisions are no longer needed.
+   */
+  private void resolveInDoubt() {
+    if (decisions == null) {
+      return;
+    }
+    for (Site dm : databaseManagers) {
+      int tid = dm.getInDoubtTransaction();
+      if (tid != 0) {
+        int commitTime = decisions.getCommitTime(tid);
+        System.out.println("T" + tid + " in doubt at Site" + dm.getIndex()
+            + (commitTime != -1 ? " is committed" : " is aborted"));
+        dm.resolve(tid, commitTime);
       }
     }
+    try {
+      decisions.truncate();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Force the decision to commit given transaction to the decision log, so
+   * that sites which prepared it and miss the commit learn it at restart.
+   * Return false if it cannot be forced.
+   */
+  private boolean logDecision(int tid) {
+    if (decisions == null) {
+      return true;
+    }
+    try {
+      decisions.commit(tid, timestamp.get());
+      return true;
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      return false;
+    }
+  }
+
+  /*
+   * Send prepare of given transaction to given sites in parallel. Return the
+   * index of a site voting to abort, or 0 if all of them vote to commit.
+   */
+  private int prepare(final int tid, List<Site> sites) {
+    List<Boolean> votes = fanOut(sites, new SiteTask<Boolean>() {
+      @Override
+      public Boolean call(Site dm) {
+        return dm.prepare(tid);
+      }
+    });
+    for (int i = 0; i < votes.size(); i++) {
+      if (!votes.get(i)) {
+        return sites.get(i).getIndex();
+      }
+    }
+    return 0;
   }
 
   /**
@@ -285,23 +1066,50 @@ public class TransactionManager {
    * @param index
    */
   public void recover(int index) {
-    databaseManagers.get(index - 1).recover();
-    commitOrAbortOrRecover = true;
+    // quorum reads find the newest version, stale replicas stay readable
+    databaseManagers.get(index - 1).recover(writeQuorum == 0);
+    // catch up is refused at init with remote sites
+    if (catchUpBatchSize > 0 && writeQuorum == 0) {
+      DatabaseManager recovered = localSites.get(index - 1);
+      List<DatabaseManager> peers = new ArrayList<DatabaseManager>();
+      for (DatabaseManager dm : localSites) {
+        if (dm != recovered && dm.getStatus()) {
+          peers.add(dm);
+        }
+      }
+      int caughtUp = recovered.catchUp(peers, catchUpBatchSize);
+      System.out.println("Site" + index + " caught up " + caughtUp
+          + " variables from peers");
+    }
+    // wake up operations waiting for variables stored at this site
+    for (Integer varIndex : waitingOperations.getWaitingVariables()) {
+      if (getSites(varIndex).contains(index)) {
+        waitingOperations.wakeVariable(varIndex);
+      }
+    }
   }
 
   /** Restart database, clear current states. */
   public void restart() {
-    init(10);
-    timestamp = -1;
+    init(nDatabaseManagers, nVariables);
+    timestamp.set(-1);
     transactions.clear();
     committedTransactions.clear();
     abortedTransactions.clear();
+    readonlyRegistry.clear();
+    participants.clear();
+    writtenVariables.clear();
     waitingOperations.clear();
+    deferredEnds.clear();
+    if (restarts != null) {
+      restarts.clear();
+    }
   }
 
   /**
    * Print out current query state: committed transactions, aborted
-   * transactions, and running transactions and all the site status.
+   * transactions, and running transactions, all the site status and the number
+   * of versions retained and reclaimed in DMs.
    */
   public void queryState() {
     System.out.print("Transactions committed: ");
@@ -323,7 +1131,7 @@ public class TransactionManager {
     }
     System.out.println();
     System.out.println("Site status:");
-    for (DatabaseManager dm : databaseManagers) {
+    for (Site dm : databaseManagers) {
       System.out.print("Site" + dm.getIndex());
       if (dm.getStatus()) {
         System.out.print("(Up); ");
@@ -331,6 +1139,15 @@ public class TransactionManager {
         System.out.print("(down); ");
       }
     }
+    System.out.println();
+    long retained = 0;
+    long reclaimed = 0;
+    for (Site dm : databaseManagers) {
+      retained += dm.getVersionsRetained();
+      reclaimed += dm.getVersionsReclaimed();
+    }
+    System.out.println("Versions retained: " + retained + ", reclaimed: "
+        + reclaimed);
   }
 
   /*
@@ -340,10 +1157,39 @@ public class TransactionManager {
    */
   private void batchExecute(List<Operation> operations) {
     for (Operation oper : operations) {
+      submit(oper);
+    }
+  }
+
+  /*
+   * Execute a new operation from the input, logging it first if aborted
+   * transactions restart. An operation of a transaction waiting to restart or
+   * being replayed only runs once the replay reaches it.
+   * 
+   * @param oper
+   */
+  private void submit(Operation oper) {
+    if (committedTransactions.contains(oper.getTranId())) {
+      // it would take locks nothing releases
+      System.out.println("T" + oper.getTranId() + " has already committed, "
+          + "ignoring " + oper.toString());
+      return;
+    }
+    if (restarts == null || restarts.record(oper)) {
       execute(oper);
     }
   }
 
+  // Check whether given operations include one of given transaction.
+  private boolean hasOperationOf(List<Operation> operations, int tid) {
+    for (Operation oper : operations) {
+      if (oper.getTranId() == tid) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /*
    * Execute a single operation.
    * 
@@ -369,52 +1215,100 @@ public class TransactionManager {
     }
     boolean writable = true;
     boolean allSitesDown = true;
-    int varIndex = oper.getVarIndex();
-    Set<Integer> conflictTranSet = new HashSet<Integer>();
+    final int tid = oper.getTranId();
+    final int varIndex = oper.getVarIndex();
+    final IntList conflictTranSet = conflictBuffers.get();
+    conflictTranSet.clear();
+    Scratch scratch = scratchLists.get();
+    List<Site> blockedSites = scratch.blockedSites;
+    blockedSites.clear();
     List<Integer> sites = getSites(varIndex);
-    for (Integer siteIndex : sites) {
-      DatabaseManager dm = databaseManagers.get(siteIndex - 1);
+    if (isQuorum(varIndex)) {
+      sites = getQuorum(oper.getTranId(), varIndex, writeQuorum);
+      if (sites == null) {
+        System.out.println("T" + oper.getTranId() + " should wait because "
+            + "fewer than " + writeQuorum + " sites are up. (" + oper.toString()
+            + ")");
+        waitingOperations.waitForVariable(oper, varIndex);
+        return;
+      }
+    }
+    List<Site> liveSites = scratch.liveSites;
+    liveSites.clear();
+    for (int i = 0; i < sites.size(); i++) {
+      Site dm = databaseManagers.get(sites.get(i) - 1);
       if (dm.getStatus()) {
         allSitesDown = false;
-        if (!dm.isWritable(oper.getTranId(), varIndex)) {
-          writable = false;
-          //If have conflict, add all conflict transaction ids into conflictTranSet
-          conflictTranSet.addAll(dm.getConflictTrans(oper.getTranId(),
-              varIndex));
-        }
+        addParticipant(tid, dm.getIndex());
+        liveSites.add(dm);
       }
     }
-    //If no conflict and not all sites are down
-    if (writable && !allSitesDown) {
+    final int newVersion;
+    if (isQuorum(varIndex)) {
+      // the quorum holds the newest version, since write quorums intersect
+      int version = 0;
       for (Integer siteIndex : sites) {
-        DatabaseManager dm = databaseManagers.get(siteIndex - 1);
-        if (dm.getStatus()) {
-          dm.write(transactions.get(oper.getTranId()), varIndex,
-              oper.getWriteValue());
-        }
+        version = Math.max(version, databaseManagers.get(siteIndex - 1)
+            .getVersion(varIndex));
       }
+      newVersion = version + 1;
     } else {
-      //Get the oldest transaction from conflictTranSet, if get a null object,
-      //indicates no conflict and all sites are down which makes the transaction wait
-      //This is the only place where waitDieProtocol will have a null transaction as parameter
-      Transaction oldest = getOldestTransaction(conflictTranSet);
-      waitDieProtocol(oper, oldest);
+      newVersion = -1;
     }
-  }
-
-  // Get the oldest transaction from all given conflicting transactions.
-  // If conflictTranset is empty, return null
-  private Transaction getOldestTransaction(Set<Integer> conflictTranSet) {
-    int result = timestamp + 1;
-    Transaction oldest = null;
-    for (Integer tid : conflictTranSet) {
-      int time = transactions.get(tid).getTimestamp();
-      if (time < result) {
-        result = time;
-        oldest = transactions.get(tid);
+    // lock and write at all live sites at once, each site reporting the
+    // conflicting transactions instead if the lock is not granted
+    WriteTask task = scratch.writeTask;
+    task.t = transactions.get(tid);
+    task.varIndex = varIndex;
+    task.value = oper.getWriteValue();
+    task.version = newVersion;
+    task.conflicts = conflictTranSet;
+    if (siteExecutors != null && task.siteConflicts == null) {
+      task.siteConflicts = new IntList[databaseManagers.size()];
+      for (int i = 0; i < task.siteConflicts.length; i++) {
+        task.siteConflicts[i] = new IntList();
+      }
+    }
+    List<IntList> conflicts = scratch.replies;
+    conflicts.clear();
+    fanOut(liveSites, task, conflicts);
+    List<Site> writtenSites = scratch.writtenSites;
+    writtenSites.clear();
+    for (int i = 0; i < liveSites.size(); i++) {
+      if (conflicts.get(i) != null) {
+        writable = false;
+        blockedSites.add(liveSites.get(i));
+        //If have conflict, add all conflict transaction ids into conflictTranSet
+        if (conflicts.get(i) != conflictTranSet) {
+          conflictTranSet.addAll(conflicts.get(i));
+        }
+      } else {
+        writtenSites.add(liveSites.get(i));
+      }
+    }
+    //If no conflict and not all sites are down
+    if (writable && !allSitesDown) {
+      addWrittenVariable(oper.getTranId(), varIndex);
+    } else {
+      // give back the locks taken at the sites which are not blocked
+      if (!writable) {
+        fanOut(writtenSites, new SiteTask<Void>() {
+          @Override
+          public Void call(Site dm) {
+            dm.undoWrite(tid, varIndex);
+            return null;
+          }
+        });
+      }
+      //If conflictTranSet is empty, there is no conflict and all sites are
+      //down which makes the transaction wait
+      if (resolveConflict(oper, conflictTranSet) && !blockedSites.isEmpty()) {
+        // queue the write lock request at sites holding conflicting locks
+        for (Site dm : blockedSites) {
+          dm.enqueueLock(oper.getTranId(), varIndex, Lock.Type.WRITE);
+        }
       }
     }
-    return oldest;
   }
 
   /**
@@ -430,25 +1324,24 @@ public class TransactionManager {
       return;
     }
     int varIndex = operation.getVarIndex();
-    List<Integer> sites = getSites(varIndex);
+    if (isQuorum(varIndex)) {
+      quorumRead(operation);
+      return;
+    }
+    Transaction t = transactions.get(tranid);
+    IntList conflicts = conflictBuffers.get();
+    List<Integer> sites = orderReplicas(t, varIndex);
     for (Integer siteIndex : sites) {
-      DatabaseManager dm = databaseManagers.get(siteIndex - 1);
+      Site dm = databaseManagers.get(siteIndex - 1);
       if (dm.getStatus()) {
-        Data data = dm.read(transactions.get(tranid), varIndex);
+        conflicts.clear();
+        Data data = dm.read(t, varIndex, conflicts);
         if (data != null) {
+          addParticipant(tranid, siteIndex);
           System.out.println("T" + tranid + " reads x" + varIndex + ": "
               + data.getValue() + " at site " + dm.getIndex());
           return;
-        } else if (dm.getConflictTrans(tranid, varIndex) != null
-            && dm.getConflictTrans(tranid, varIndex).size() != 0) {
-          
-          //If the Data returned is null, either because conflict or Data is unavailable
-          //If Data is unavailable, there will be no conflict
-          //If conflicts, can only conflict with one transaction who has the write Lock
-          Iterator<Integer> it = dm.getConflictTrans(tranid, varIndex)
-              .iterator();
-          int tid = it.next();
-          waitDieProtocol(operation, transactions.get(tid));
+        } else if (waitForReadLock(operation, siteIndex, conflicts)) {
           return;
         }
       }
@@ -458,37 +1351,58 @@ public class TransactionManager {
             + operation.getTranId()
             + " should wait because all the sites are down or all the variable are unavailable." 
             + "(" + operation.toString() + ")");
-    waitingOperations.offer(operation);
+    waitingOperations.waitForVariable(operation, varIndex);
   }
 
   /*
-   * If the transaction associated with given operation is older than given t,
-   * then given operation should "wait". Otherwise, abort transaction.
+   * Let the concurrency policy decide whether the transaction of given
+   * operation, blocked by given conflicting transactions, should "wait" or
+   * abort, or whether some of the conflicting transactions abort. Victims are
+   * aborted at the end of the tick, after the operation has queued its lock
+   * requests. Return true if the operation waits.
    * 
    * @param oper
    * 
-   * @param t
+   * @param conflicts
+   *          conflicting transaction ids, empty if all sites are down
    */
-  private boolean waitDieProtocol(Operation oper, Transaction t) {
-    //If transaction is null, only happens when all sites are down
-    if (t == null) {
+  private boolean resolveConflict(Operation oper, IntList conflicts) {
+    //If there is no conflicting transaction, only happens when all sites are down
+    if (conflicts.isEmpty()) {
       System.out.println("T" + oper.getTranId()
           + " should wait because all the sites are down. " + "(" + oper.toString() + ")");
-      waitingOperations.offer(oper);
+      waitingOperations.waitForVariable(oper, oper.getVarIndex());
       return true;
     }
-    if (transactions.get(oper.getTranId()).getTimestamp() < t.getTimestamp()) {
-      // should wait
-      System.out.println("T" + oper.getTranId() + " should wait for T"
-          + t.getTranId() + " (" + oper.toString() + ")");
-      waitingOperations.offer(oper);
-      return true;
-    } else {
-      System.out.println("T" + oper.getTranId() + " should abort because conflict with T"
-          + t.getTranId() + " (" + oper.toString() + ")");
-      abort(oper.getTranId());
+    List<Transaction> holders = scratchLists.get().holders;
+    holders.clear();
+    for (int i = 0; i < conflicts.size(); i++) {
+      Transaction t = transactions.get(conflicts.get(i));
+      if (!holders.contains(t)) {
+        holders.add(t);
+      }
+    }
+    ConcurrencyPolicy.Decision decision = concurrencyPolicy.resolve(
+        transactions.get(oper.getTranId()), oper.getVarIndex(), holders);
+    if (decision.abortsRequester()) {
+      System.out.println("T" + oper.getTranId() + " should abort because "
+          + decision.getReason() + " (" + oper.toString() + ")");
+      abortOrDefer(oper.getTranId());
       return false;
     }
+    // should wait
+    System.out.println("T" + oper.getTranId() + " should wait for T"
+        + decision.getBlocker().getTranId() + " (" + oper.toString() + ")");
+    waitingOperations.waitForTransaction(oper, decision.getBlocker()
+        .getTranId());
+    for (Transaction victim : decision.getVictims()) {
+      if (abortedTransactions.add(victim.getTranId())) {
+        System.out.println("T" + victim.getTranId() + " should abort because "
+            + decision.getReason() + " (" + oper.toString() + ")");
+        pendingAborts.add(victim.getTranId());
+      }
+    }
+    return true;
   }
 
   // Parse dump-related commands.
@@ -504,7 +1418,7 @@ public class TransactionManager {
 
   // Print all committed values af each variable at each site.
   public void dump() {
-    for (DatabaseManager dm : databaseManagers) {
+    for (Site dm : databaseManagers) {
       dumpSite(dm.getIndex());
     }
   }
@@ -534,7 +1448,7 @@ public class TransactionManager {
   // Print all committed values of given variable.
   public void dumpVar(int varIndex) {
     System.out.println("====== x: " + varIndex + " ======");
-    for (DatabaseManager dm : databaseManagers) {
+    for (Site dm : databaseManagers) {
       Data data = dm.dump(varIndex);
       if (data != null) {
         System.out.print("x" + varIndex + ": " + data.getValue() + " at site "
@@ -547,26 +1461,349 @@ public class TransactionManager {
     }
   }
 
+  /*
+   * Read a replicated variable from a read quorum, and return the newest
+   * version among the quorum, which intersects the last write quorum.
+   */
+  private void quorumRead(Operation operation) {
+    int tranid = operation.getTranId();
+    int varIndex = operation.getVarIndex();
+    Transaction t = transactions.get(tranid);
+    Data newest = null;
+    int newestSite = 0;
+    int count = 0;
+    IntList conflicts = conflictBuffers.get();
+    for (Integer siteIndex : orderReplicas(t, varIndex)) {
+      Site dm = databaseManagers.get(siteIndex - 1);
+      if (!dm.getStatus()) {
+        continue;
+      }
+      conflicts.clear();
+      Data data = dm.read(t, varIndex, conflicts);
+      if (data == null) {
+        if (waitForReadLock(operation, siteIndex, conflicts)) {
+          return;
+        }
+        continue;
+      }
+      addParticipant(tranid, siteIndex);
+      if (newest == null || data.getVersion() > newest.getVersion()) {
+        newest = data;
+        newestSite = siteIndex;
+      }
+      if (++count == readQuorum) {
+        System.out.println("T" + tranid + " reads x" + varIndex + ": "
+            + newest.getValue() + " at site " + newestSite);
+        return;
+      }
+    }
+    System.out.println("T" + tranid + " should wait because fewer than "
+        + readQuorum + " sites are up. (" + operation.toString() + ")");
+    waitingOperations.waitForVariable(operation, varIndex);
+  }
+
+  /*
+   * If a read failed at given site because of a conflicting write lock, given
+   * by the site with the failed read, apply the concurrency policy and queue
+   * the read lock request if the read waits. Return false if there is no
+   * conflict, i.e. the variable is unavailable at that site.
+   */
+  private boolean waitForReadLock(Operation operation, int siteIndex,
+      IntList conflicts) {
+    int tranid = operation.getTranId();
+    int varIndex = operation.getVarIndex();
+    Site dm = databaseManagers.get(siteIndex - 1);
+    //If the Data returned is null, either because conflict or Data is unavailable
+    //If Data is unavailable, there will be no conflict
+    //If conflicts, can only conflict with one transaction who has the write Lock
+    if (conflicts.isEmpty()) {
+      return false;
+    }
+    if (resolveConflict(operation, conflicts)) {
+      // queue the read lock request at the site holding the write lock
+      addParticipant(tranid, siteIndex);
+      dm.enqueueLock(tranid, varIndex, Lock.Type.READ);
+    }
+    return true;
+  }
+
+  /*
+   * Return the first given number of sites up storing given variable, in the
+   * order of the replica selector, or null if there are not enough such sites.
+   */
+  private List<Integer> getQuorum(int tid, int varIndex, int size) {
+    List<Integer> result = new ArrayList<Integer>(size);
+    for (Integer siteIndex : replicaSelector.order(tid, getSites(varIndex))) {
+      if (databaseManagers.get(siteIndex - 1).getStatus()) {
+        result.add(siteIndex);
+        if (result.size() == size) {
+          return result;
+        }
+      }
+    }
+    return null;
+  }
+
+  // Check whether given variable is replicated with quorums.
+  private boolean isQuorum(int varIndex) {
+    return writeQuorum > 0 && placement.isReplicated(varIndex);
+  }
+
+  /*
+   * Order the sites storing given variable for a read of given transaction,
+   * with the replica selector. A read-only transaction tries the sites known
+   * to hold a version it can read first.
+   */
+  private List<Integer> orderReplicas(Transaction t, int varIndex) {
+    List<Integer> sites = getSites(varIndex);
+    if (sites == null) {
+      return Collections.emptyList();
+    }
+    sites = replicaSelector.order(t.getTranId(), sites);
+    if (t.getType() != Transaction.Type.RO || sites.size() < 2) {
+      return sites;
+    }
+    Scratch scratch = scratchLists.get();
+    List<Integer> result = scratch.replicas;
+    List<Integer> others = scratch.otherReplicas;
+    result.clear();
+    others.clear();
+    for (Integer siteIndex : sites) {
+      if (databaseManagers.get(siteIndex - 1).hasSnapshotVersion(t, varIndex)) {
+        result.add(siteIndex);
+      } else {
+        others.add(siteIndex);
+      }
+    }
+    result.addAll(others);
+    return result;
+  }
+
   /**
-   * Notify database managers to abort given transaction and put that
-   * transaction put into aborted list.
+   * Compare the committed values of replicated variables at every site which
+   * is up with the first such site, through their hash trees, and print the
+   * variable ranges where they differ. With partial replication, the ranges
+   * also cover written variables stored at only one of the two sites. Not
+   * available with remote sites.
+   */
+  public void verify() {
+    if (localSites == null) {
+      System.out.println("verify is not available with remote sites");
+      return;
+    }
+    DatabaseManager first = null;
+    for (DatabaseManager dm : localSites) {
+      if (!dm.getStatus()) {
+        continue;
+      }
+      if (first == null) {
+        first = dm;
+        continue;
+      }
+      List<int[]> ranges = first.diff(dm);
+      System.out.print("Site" + first.getIndex() + " and Site" + dm.getIndex());
+      if (ranges.isEmpty()) {
+        System.out.println(" agree");
+        continue;
+      }
+      System.out.print(" differ in");
+      for (int[] range : ranges) {
+        System.out.print(" x" + range[0]);
+        if (range[1] > range[0]) {
+          System.out.print("-x" + range[1]);
+        }
+      }
+      System.out.println();
+    }
+  }
+
+  /**
+   * Notify database managers of the sites this transaction has touched to
+   * abort given transaction and put that transaction put into aborted list.
+   * Its waiting operations are dropped.
    * 
    * @param tid
    *          transaction id
    */
-  public void abort(int tid) {
-    for (DatabaseManager dm : databaseManagers) {
-      if (dm.getStatus()) {
+  public void abort(final int tid) {
+    fanOut(getLiveParticipants(tid), new SiteTask<Void>() {
+      @Override
+      public Void call(Site dm) {
         dm.abort(tid);
+        return null;
       }
-    }
+    });
+    participants.remove(tid);
     abortedTransactions.add(tid);
-    commitOrAbortOrRecover = true;
+    waitingOperations.cancel(tid);
+    concurrencyPolicy.transactionEnded(tid);
+    endReadonly(tid);
+    wakeWaitingOperations(tid);
+    if (restarts != null) {
+      scheduleRestart(tid);
+    }
+  }
+
+  // Schedule the restart of given aborted transaction, if it has restarts
+  // left.
+  private void scheduleRestart(int tid) {
+    int restarted = restarts.getRestarts(tid);
+    int due = restarts.schedule(tid, timestamp.get());
+    if (due >= 0) {
+      // already scheduled if it was aborted twice
+      if (restarts.getRestarts(tid) > restarted) {
+        System.out.println("T" + tid + " will restart at time " + due);
+      }
+    } else if (restarted >= restartLimit) {
+      System.out.println("T" + tid + " gives up after " + restarted
+          + " restarts");
+    }
+  }
+
+  /*
+   * If a Read-only transaction ends, the oldest running read-only transaction
+   * may change. Let all the DM drop the old versions no longer visible.
+   */
+  private void endReadonly(int tid) {
+    if (transactions.containsKey(tid)
+        && transactions.get(tid).getType() == Transaction.Type.RO) {
+      readonlyRegistry.end(tid);
+      for (Site dm : databaseManagers) {
+        dm.sweepVersions();
+      }
+    }
+  }
+
+  /**
+   * Called by the database manager when a queued lock request is granted.
+   * Wake up the operations of given transaction waiting for that lock.
+   * 
+   * @param tid
+   *          transaction id
+   * @param varIndex
+   *          variable index
+   * @param siteIndex
+   *          index of the site granting the lock
+   */
+  @Override
+  public void lockGranted(int tid, int varIndex, int siteIndex) {
+    addParticipant(tid, siteIndex);
+    waitingOperations.wakeLock(tid, varIndex);
+  }
+
+  /*
+   * Wake up operations waiting for given transaction, and operations waiting
+   * for variables the transaction has written, which may become available
+   * after the transaction commits.
+   */
+  private void wakeWaitingOperations(int tid) {
+    waitingOperations.wakeTransaction(tid);
+    Set<Integer> varSet = writtenVariables.remove(tid);
+    if (varSet != null) {
+      for (Integer varIndex : varSet) {
+        waitingOperations.wakeVariable(varIndex);
+      }
+    }
   }
 
-  // Return all sites that storing given variable.
+  // Return all sites that storing given variable, null if no such variable.
   private List<Integer> getSites(int varIndex) {
-    return variableMap.get(varIndex);
+    return placement.getSites(varIndex);
+  }
+
+  // Flush and close the logs of all sites.
+  private void closeLogs() {
+    for (Site dm : databaseManagers) {
+      dm.closeLog();
+    }
+    if (decisions != null) {
+      try {
+        decisions.close();
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+      decisions = null;
+    }
+  }
+
+  // Abort given transaction now, or once the read side of stateLock is
+  // released if other sessions may be running operations.
+  private void abortOrDefer(int tid) {
+    if (concurrent && !stateLock.isWriteLockedByCurrentThread()) {
+      abortedTransactions.add(tid);
+      pendingAborts.add(tid);
+    } else {
+      abort(tid);
+    }
+  }
+
+  // Record that given transaction has touched the site at given index.
+  private void addParticipant(int tid, int siteIndex) {
+    // site threads of a parallel commit may add participants at once, via
+    // lock grants, so the set is created atomically
+    participants.computeIfAbsent(tid, NEW_SET).add(siteIndex);
+  }
+
+  // Record that given transaction has written the variable at given index.
+  private void addWrittenVariable(int tid, int varIndex) {
+    writtenVariables.computeIfAbsent(tid, NEW_SET).add(varIndex);
+  }
+
+  // Return database managers of the sites up that given transaction has
+  // touched.
+  private List<Site> getLiveParticipants(int tid) {
+    List<Site> result = new ArrayList<Site>();
+    for (Site dm : getParticipants(tid)) {
+      if (dm.getStatus()) {
+        result.add(dm);
+      }
+    }
+    return result;
+  }
+
+  // Return the index of a remote site that given transaction has touched and
+  // whose connection is lost, or 0.
+  private int getLostParticipant(int tid) {
+    Set<Integer> sites = participants.get(tid);
+    if (remoteSites != null && sites != null) {
+      for (Integer siteIndex : sites) {
+        Site dm = databaseManagers.get(siteIndex - 1);
+        if (dm instanceof RemoteSite && ((RemoteSite) dm).isLost()) {
+          return siteIndex;
+        }
+      }
+    }
+    return 0;
+  }
+
+  // Return the given sites storing a variable given transaction has written.
+  private List<Site> getWriteParticipants(int tid,
+      List<Site> sites) {
+    List<Site> result = new ArrayList<Site>();
+    Set<Integer> varSet = writtenVariables.get(tid);
+    if (varSet == null) {
+      return result;
+    }
+    for (Site dm : sites) {
+      for (Integer varIndex : varSet) {
+        if (placement.isStoredAt(varIndex, dm.getIndex())) {
+          result.add(dm);
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  // Return database managers of all sites that given transaction has touched.
+  private List<Site> getParticipants(int tid) {
+    List<Site> result = new ArrayList<Site>();
+    if (participants.containsKey(tid)) {
+      for (Integer siteIndex : participants.get(tid)) {
+        result.add(databaseManagers.get(siteIndex - 1));
+      }
+    }
+    return result;
   }
 
   private boolean hasAborted(int tid) {
@@ -594,7 +1831,7 @@ public class TransactionManager {
     check(args.length == 2, "Unexpected Read " + arg);
     int tid = parseTransactionId(args[0]);
     int var = parseVariable(args[1]);
-    return new Operation(tid, var, timestamp, Operation.Type.READ);
+    return new Operation(tid, var, timestamp.get(), Operation.Type.READ);
   }
 
   // Parse "T*, x*, **" into corresponding write operation
@@ -604,7 +1841,7 @@ public class TransactionManager {
     int tid = parseTransactionId(args[0]);
     int var = parseVariable(args[1]);
     int writeValue = Integer.parseInt(args[2]);
-    return new Operation(tid, var, timestamp, Operation.Type.WRITE, writeValue);
+    return new Operation(tid, var, timestamp.get(), Operation.Type.WRITE, writeValue);
   }
 
   // If condition is false, print out error message and exit program
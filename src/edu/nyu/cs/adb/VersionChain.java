@@ -0,0 +1,124 @@
+package edu.nyu.cs.adb;
+
+/**
+ * This class keeps the committed versions of one variable on a site, ordered
+ * by commit time. Commit times are kept in a primitive array parallel to the
+ * versions, so that the version visible to a snapshot is found by binary
+ * search.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class VersionChain {
+
+  private int[] _commitTimes;
+  private Data[] _versions;
+
+  // position of the oldest version in the arrays
+  private int _head;
+  private int _size;
+
+  public VersionChain(Data data) {
+    _commitTimes = new int[1];
+    _versions = new Data[1];
+    _head = 0;
+    _size = 0;
+    add(data);
+  }
+
+  /**
+   * Append a newly committed version. Its commit time must not be earlier
+   * than the last version's.
+   *
+   * @param data
+   */
+  public void add(Data data) {
+    if (_head + _size == _versions.length) {
+      if (_head > 0) {
+        // reuse the room left by pruned versions
+        System.arraycopy(_commitTimes, _head, _commitTimes, 0, _size);
+        System.arraycopy(_versions, _head, _versions, 0, _size);
+        for (int i = _size; i < _head + _size; i++) {
+          _versions[i] = null;
+        }
+        _head = 0;
+      }
+      if (_size == _versions.length) {
+        int[] times = new int[_size * 2];
+        Data[] versions = new Data[_size * 2];
+        System.arraycopy(_commitTimes, 0, times, 0, _size);
+        System.arraycopy(_versions, 0, versions, 0, _size);
+        _commitTimes = times;
+        _versions = versions;
+      }
+    }
+    _commitTimes[_head + _size] = data.getCommitTime();
+    _versions[_head + _size] = data;
+    _size++;
+  }
+
+  /**
+   * Get the last committed version.
+   *
+   * @return data
+   */
+  public Data getLatest() {
+    return _versions[_head + _size - 1];
+  }
+
+  /**
+   * Get the last version committed no later than given time.
+   *
+   * @param time
+   * @return data, or null if all the versions are committed after that time.
+   */
+  public Data getVisible(int time) {
+    int pos = findVisible(time);
+    return pos == -1 ? null : _versions[_head + pos];
+  }
+
+  /**
+   * Get the number of versions in the chain.
+   *
+   * @return size
+   */
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * Remove the versions older than the one visible at given time. If time is
+   * -1, keep the last version only.
+   *
+   * @param time
+   * @return number of versions removed
+   */
+  public int prune(int time) {
+    int keep = _size - 1;
+    if (time != -1) {
+      keep = Math.max(findVisible(time), 0);
+    }
+    for (int i = _head; i < _head + keep; i++) {
+      _versions[i] = null;
+    }
+    _head += keep;
+    _size -= keep;
+    return keep;
+  }
+
+  /* Position (relative to head) of last version with commit time <= time */
+  private int findVisible(int time) {
+    int low = 0;
+    int high = _size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (_commitTimes[_head + mid] <= time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
+  }
+}
@@ -0,0 +1,301 @@
+package edu.nyu.cs.adb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class keeps the waiting operations indexed by what they wait on, either
+ * a transaction holding a conflicting lock or a variable whose sites are down
+ * or unavailable. Commit, abort and recover only wake up the operations they
+ * can unblock, and woken operations are handed out in their original order.
+ * An operation waiting for a transaction can also be woken up directly when a
+ * site grants it the lock it has been queued for. The operations of a
+ * transaction are dropped when it aborts. Methods are synchronized,
+ * since concurrent sessions may add waiting operations at the same time.
+ *
+ * @author Jingxin Zhu
+ * @author Wuping Lei
+ *
+ */
+class WaitQueue {
+
+  private static class Entry implements Comparable<Entry> {
+    private Operation _operation;
+    private long _seq;
+
+    // bumped each time the entry is handed out, so that tickets left in other
+    // indexes by an earlier wait become stale
+    private int _version = 0;
+    private boolean _ready = false;
+
+    Entry(Operation operation, long seq) {
+      _operation = operation;
+      _seq = seq;
+    }
+
+    @Override
+    public int compareTo(Entry e) {
+      return Long.compare(_seq, e._seq);
+    }
+  }
+
+  /* Registration of an entry under one key of an index. */
+  private static class Ticket {
+    private Entry _entry;
+    private int _version;
+
+    Ticket(Entry entry) {
+      _entry = entry;
+      _version = entry._version;
+    }
+  }
+
+  // sequence number given to next new waiting operation
+  private long _nextSeq = 0;
+
+  // the entry handed out by last poll, re-used if its operation waits again
+  private Entry _current;
+
+  // Map<Transaction id, operations waiting for that transaction>
+  private Map<Integer, List<Ticket>> _waitForTransaction = new HashMap<Integer, List<Ticket>>();
+
+  // Map<(Transaction id, Variable index), operations of that transaction
+  // waiting for a lock on that variable>
+  private Map<Long, List<Ticket>> _waitForLock = new HashMap<Long, List<Ticket>>();
+
+  // Map<Variable index, operations waiting for that variable to be available>
+  private Map<Integer, List<Ticket>> _waitForVariable = new HashMap<Integer, List<Ticket>>();
+
+  // operations woken up and ready to be re-executed, ordered by sequence
+  private PriorityQueue<Entry> _ready = new PriorityQueue<Entry>();
+
+  private int _size = 0;
+
+  // Map<Transaction id, its operations waiting or ready>
+  private Map<Integer, List<Entry>> _byTransaction = new HashMap<Integer, List<Entry>>();
+
+  /**
+   * Let the operation wait until given transaction commits or aborts, or until
+   * its transaction is granted the lock on the variable it accesses.
+   *
+   * @param oper
+   * @param tid
+   *          transaction id of the conflicting lock holder
+   */
+  public synchronized void waitForTransaction(Operation oper, int tid) {
+    Entry entry = newEntry(oper);
+    register(_waitForTransaction, tid, entry);
+    register(_waitForLock, lockKey(oper.getTranId(), oper.getVarIndex()),
+        entry);
+  }
+
+  /**
+   * Let the operation wait until given variable may become available again.
+   *
+   * @param oper
+   * @param varIndex
+   */
+  public synchronized void waitForVariable(Operation oper, int varIndex) {
+    register(_waitForVariable, varIndex, newEntry(oper));
+  }
+
+  /**
+   * Wake up all the operations waiting for given transaction.
+   *
+   * @param tid
+   */
+  public synchronized void wakeTransaction(int tid) {
+    wake(_waitForTransaction.remove(tid));
+  }
+
+  /**
+   * Wake up the operations of given transaction waiting for a lock on given
+   * variable.
+   *
+   * @param tid
+   * @param varIndex
+   */
+  public synchronized void wakeLock(int tid, int varIndex) {
+    wake(_waitForLock.remove(lockKey(tid, varIndex)));
+  }
+
+  /**
+   * Wake up all the operations waiting for given variable.
+   *
+   * @param varIndex
+   */
+  public synchronized void wakeVariable(int varIndex) {
+    wake(_waitForVariable.remove(varIndex));
+  }
+
+  /**
+   * Return indexes of all the variables some operation is waiting for.
+   *
+   * @return list of variable indexes
+   */
+  public synchronized List<Integer> getWaitingVariables() {
+    return new ArrayList<Integer>(_waitForVariable.keySet());
+  }
+
+  /**
+   * Return the earliest woken operation, or null if no operation is ready.
+   *
+   * @return operation
+   */
+  public synchronized Operation poll() {
+    _current = _ready.poll();
+    if (_current == null) {
+      return null;
+    }
+    _current._ready = false;
+    _current._version++;
+    _size--;
+    removeFromTransaction(_current);
+    // the lock ticket is stale now, drop it unless the lock is still waited
+    // for by another operation
+    unregisterLock(_current);
+    return _current._operation;
+  }
+
+  /**
+   * Check whether some operation of given transaction is waiting or ready.
+   *
+   * @param tid
+   * @return true if an operation of the transaction has not been handed out
+   */
+  public synchronized boolean isWaiting(int tid) {
+    return _byTransaction.containsKey(tid);
+  }
+
+  /**
+   * Drop all the waiting and ready operations of given transaction when it
+   * aborts, together with its lock tickets. Its tickets waiting for a
+   * transaction or a variable become stale, and are dropped when that
+   * transaction ends or that variable is woken up.
+   *
+   * @param tid
+   */
+  public synchronized void cancel(int tid) {
+    if (_current != null && _current._operation.getTranId() == tid) {
+      _current = null;
+    }
+    List<Entry> entries = _byTransaction.remove(tid);
+    if (entries == null) {
+      return;
+    }
+    for (Entry entry : entries) {
+      if (entry._ready) {
+        _ready.remove(entry);
+        entry._ready = false;
+      }
+      entry._version++;
+      _size--;
+      _waitForLock.remove(lockKey(tid, entry._operation.getVarIndex()));
+    }
+  }
+
+  /**
+   * Return the number of operations still waiting or ready.
+   *
+   * @return size
+   */
+  public synchronized int size() {
+    return _size;
+  }
+
+  /** Remove all the waiting operations. */
+  public synchronized void clear() {
+    _waitForTransaction.clear();
+    _waitForLock.clear();
+    _waitForVariable.clear();
+    _ready.clear();
+    _current = null;
+    _size = 0;
+    _byTransaction.clear();
+  }
+
+  private Entry newEntry(Operation oper) {
+    Entry entry;
+    if (_current != null && _current._operation == oper) {
+      // operation waits again, keep its original order
+      entry = _current;
+      _current = null;
+    } else {
+      entry = new Entry(oper, _nextSeq++);
+    }
+    _size++;
+    List<Entry> entries = _byTransaction.get(oper.getTranId());
+    if (entries == null) {
+      entries = new ArrayList<Entry>(2);
+      _byTransaction.put(oper.getTranId(), entries);
+    }
+    entries.add(entry);
+    return entry;
+  }
+
+  private void removeFromTransaction(Entry entry) {
+    int tid = entry._operation.getTranId();
+    List<Entry> entries = _byTransaction.get(tid);
+    if (entries == null) {
+      return;
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i) == entry) {
+        entries.remove(i);
+        break;
+      }
+    }
+    if (entries.isEmpty()) {
+      _byTransaction.remove(tid);
+    }
+  }
+
+  /* Drop the stale tickets under the lock key of given entry */
+  private void unregisterLock(Entry entry) {
+    Long key = lockKey(entry._operation.getTranId(),
+        entry._operation.getVarIndex());
+    List<Ticket> tickets = _waitForLock.get(key);
+    if (tickets == null) {
+      return;
+    }
+    for (int i = tickets.size() - 1; i >= 0; i--) {
+      Ticket ticket = tickets.get(i);
+      if (ticket._version != ticket._entry._version) {
+        tickets.remove(i);
+      }
+    }
+    if (tickets.isEmpty()) {
+      _waitForLock.remove(key);
+    }
+  }
+
+  private <K> void register(Map<K, List<Ticket>> index, K key, Entry entry) {
+    List<Ticket> tickets = index.get(key);
+    if (tickets == null) {
+      tickets = new ArrayList<Ticket>();
+      index.put(key, tickets);
+    }
+    tickets.add(new Ticket(entry));
+  }
+
+  private void wake(List<Ticket> tickets) {
+    if (tickets == null) {
+      return;
+    }
+    for (Ticket ticket : tickets) {
+      Entry entry = ticket._entry;
+      // skip entries already woken or waiting again under a newer ticket
+      if (ticket._version == entry._version && !entry._ready) {
+        entry._ready = true;
+        _ready.add(entry);
+      }
+    }
+  }
+
+  private static long lockKey(int tid, int varIndex) {
+    return ((long) tid << 32) | (varIndex & 0xffffffffL);
+  }
+}